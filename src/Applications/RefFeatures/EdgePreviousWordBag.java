@@ -10,10 +10,16 @@ import HOSemiCRF.*;
 public class EdgePreviousWordBag extends FeatureType {
 
     public ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd) {
+        return generateComposedObsAt(seq, segStart, segEnd);
+    }
+
+    public boolean isTokenDecomposable() {
+        return true;
+    }
+
+    public ArrayList<String> generateEdgeObsAt(DataSequence seq, int pos) {
         ArrayList<String> obs = new ArrayList<String>();
-        for (int i = segStart + 1; i <= segEnd; i++) {
-            obs.add("EPWB." + seq.x(i - 1));
-        }
+        obs.add("EPWB." + seq.x(pos - 1));
         return obs;
     }
 
@@ -10,10 +10,16 @@ import HOSemiCRF.*;
 public class EdgeWordBag extends FeatureType {
 
     public ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd) {
+        return generateComposedObsAt(seq, segStart, segEnd);
+    }
+
+    public boolean isTokenDecomposable() {
+        return true;
+    }
+
+    public ArrayList<String> generateEdgeObsAt(DataSequence seq, int pos) {
         ArrayList<String> obs = new ArrayList<String>();
-        for (int i = segStart + 1; i <= segEnd; i++) {
-            obs.add("EWB." + seq.x(i));
-        }
+        obs.add("EWB." + seq.x(pos));
         return obs;
     }
 
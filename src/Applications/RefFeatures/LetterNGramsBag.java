@@ -12,15 +12,21 @@ public class LetterNGramsBag extends FeatureType {
     static final int K = 6;
 
     public ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd) {
+        return generateComposedObsAt(seq, segStart, segEnd);
+    }
+
+    public boolean isTokenDecomposable() {
+        return true;
+    }
+
+    public ArrayList<String> generateTokenObsAt(DataSequence seq, int pos) {
         ArrayList<String> obs = new ArrayList<String>();
-        for (int i = segStart; i <= segEnd; i++) {
-            String word = (String) seq.x(i);
-            for (int N = 2; N <= K; N++) {
-                ArrayList<String> ngrams = letterNGrams(word, N);
-                int c = ngrams.size();
-                for (int j = 0; j < c; j++) {
-                    obs.add("LNGB." + ngrams.get(j));
-                }
+        String word = (String) seq.x(pos);
+        for (int N = 2; N <= K; N++) {
+            ArrayList<String> ngrams = letterNGrams(word, N);
+            int c = ngrams.size();
+            for (int j = 0; j < c; j++) {
+                obs.add("LNGB." + ngrams.get(j));
             }
         }
         return obs;
@@ -10,10 +10,16 @@ import HOSemiCRF.*;
 public class NextWordBag extends FeatureType {
 
     public ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd) {
+        return generateComposedObsAt(seq, segStart, segEnd);
+    }
+
+    public boolean isTokenDecomposable() {
+        return true;
+    }
+
+    public ArrayList<String> generateTokenObsAt(DataSequence seq, int pos) {
         ArrayList<String> obs = new ArrayList<String>();
-        for (int i = segStart; i <= segEnd; i++) {
-            obs.add("NWB." + seq.x(i + 1));
-        }
+        obs.add("NWB." + seq.x(pos + 1));
         return obs;
     }
 
@@ -10,11 +10,17 @@ import HOSemiCRF.*;
 public class WordKPositionAfterBag extends FeatureType {
 
     public ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd) {
+        return generateComposedObsAt(seq, segStart, segEnd);
+    }
+
+    public boolean isTokenDecomposable() {
+        return true;
+    }
+
+    public ArrayList<String> generateTokenObsAt(DataSequence seq, int pos) {
         ArrayList<String> obs = new ArrayList<String>();
-        for (int i = segStart; i <= segEnd; i++) {
-            for (int j = i + 1; j < i + WordKPositionBeforeBag.K && j <= seq.length(); j++) {
-                obs.add("WKAB." + seq.x(j));
-            }
+        for (int j = pos + 1; j < pos + WordKPositionBeforeBag.K && j <= seq.length(); j++) {
+            obs.add("WKAB." + seq.x(j));
         }
         return obs;
     }
@@ -12,11 +12,17 @@ public class WordKPositionBeforeBag extends FeatureType {
     static final int K = 5;
 
     public ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd) {
+        return generateComposedObsAt(seq, segStart, segEnd);
+    }
+
+    public boolean isTokenDecomposable() {
+        return true;
+    }
+
+    public ArrayList<String> generateTokenObsAt(DataSequence seq, int pos) {
         ArrayList<String> obs = new ArrayList<String>();
-        for (int i = segStart; i <= segEnd; i++) {
-            for (int j = i - 1; j > i - K && j >= -1; j--) {
-                obs.add("WKBB." + seq.x(j));
-            }
+        for (int j = pos - 1; j > pos - K && j >= -1; j--) {
+            obs.add("WKBB." + seq.x(j));
         }
         return obs;
     }
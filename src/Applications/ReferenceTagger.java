@@ -138,6 +138,9 @@ public class ReferenceTagger {
         long startTime = System.currentTimeMillis();
         highOrderSemiCrfModel.runViterbi(testData.getSeqList());
         System.out.println("done in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (highOrderSemiCrfModel.getNumPrunedStates() > 0) {
+            System.out.println("Pruned " + highOrderSemiCrfModel.getNumPrunedStates() + " states");
+        }
         
         // Print out the predicted data
         File dir = new File("out/");
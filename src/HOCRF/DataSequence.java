@@ -5,6 +5,10 @@ import java.util.*;
 
 /**
  * Class for a data sequence
+ * Label constraints are not supported by the high-order CRF: unlike HOSemiCRF.DataSequence,
+ * this class has no allowed labels or forbidden boundaries, and the decoders and the
+ * forward-backward algorithm of this package search all the labels at every position.
+ * Use the semi-CRF package with maxSegment = 1 to decode a CRF under constraints.
  * @author Nguyen Viet Cuong
  */
 public class DataSequence {
@@ -7,12 +7,15 @@ import Parallel.*;
 
 /**
  * High-order CRF class
+ * Label constraints are not supported (see DataSequence).
  * @author Nguyen Viet Cuong
  */
 public class HighOrderCRF {
 
     FeatureGenerator featureGen; // Feature generator
     double[] lambda; // Feature weight vector
+    long numPrunedStates; // Number of forward states pruned by the beam in the last Viterbi run
+    ArrayList<Workspace> workspaces; // Per-thread workspaces for decoding
 	
     /**
      * Construct and initialize a high-order CRF from feature generator.
@@ -22,6 +25,7 @@ public class HighOrderCRF {
         featureGen = fgen;
         lambda = new double[featureGen.featureMap.size()];
         Arrays.fill(lambda, 0.0);
+        workspaces = new ArrayList<Workspace>();
     }
 
     /**
@@ -39,9 +43,32 @@ public class HighOrderCRF {
      * @param data Testing data
      */
     public void runViterbi(ArrayList data) throws Exception {
-        Viterbi tester = new Viterbi(featureGen, lambda, data);
+        Viterbi tester = new Viterbi(featureGen, lambda, data, workspaces);
         Scheduler sch = new Scheduler(tester, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
         sch.run();
+        numPrunedStates = tester.getNumPrunedStates();
+    }
+    
+    /**
+     * Return the number of forward states pruned by the beam in the last Viterbi run.
+     * @return Number of pruned states, 0 if the beam is not used
+     */
+    public long getNumPrunedStates() {
+        return numPrunedStates;
+    }
+    
+    /**
+     * Run k-best Viterbi algorithm on testing data.
+     * The testing sequences are not changed.
+     * @param data Testing data
+     * @param k Number of best labelings for each sequence
+     * @return List of the k best labelings (best first) for each sequence
+     */
+    public ArrayList<ArrayList<Labeling>> runKBestViterbi(ArrayList data, int k) throws Exception {
+        KBestViterbi tester = new KBestViterbi(featureGen, lambda, data, workspaces, k);
+        Scheduler sch = new Scheduler(tester, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+        sch.run();
+        return tester.getKBestLists();
     }
 	
     /**
@@ -0,0 +1,65 @@
+package HOCRF;
+
+/**
+ * Class for a labeling of a sequence with its score
+ * @author Nguyen Viet Cuong
+ */
+public class Labeling {
+
+    int[] labels; // Label array
+    double score; // Score of the labeling (in log scale)
+
+    /**
+     * Construct an empty labeling for a sequence of a given length.
+     * @param length Sequence length
+     * @param sc Score of the labeling
+     */
+    public Labeling(int length, double sc) {
+        labels = new int[length];
+        score = sc;
+    }
+
+    /**
+     * Return length of the labeled sequence.
+     * @return Length of the sequence
+     */
+    public int length() {
+        return labels.length;
+    }
+
+    /**
+     * Return label at a position.
+     * @param pos Input position
+     * @return Label at the input position
+     */
+    public int y(int pos) {
+        return labels[pos];
+    }
+
+    /**
+     * Return the score of the labeling.
+     * @return Score of the labeling
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Set the label at a position.
+     * @param pos Input position
+     * @param y Label to be set at the input position
+     */
+    public void set_y(int pos, int y) {
+        labels[pos] = y;
+    }
+
+    /**
+     * Copy the labels into a data sequence.
+     * @param seq Data sequence of the same length
+     */
+    public void apply(DataSequence seq) {
+        for (int pos = 0; pos < labels.length; pos++) {
+            seq.set_y(pos, labels[pos]);
+        }
+    }
+}
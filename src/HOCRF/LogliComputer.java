@@ -115,11 +115,15 @@ public class LogliComputer implements Schedulable {
         double[][] logAlpha = new double[seq.length() + 1][featureGen.forwardStateMap.size()];
         Arrays.fill(logAlpha[0], Double.NEGATIVE_INFINITY);
         logAlpha[0][0] = 0.0;
+        double[] terms = new double[featureGen.forwardStateMap.size()];
         for (int j = 0; j < seq.length(); j++) {
-            Arrays.fill(logAlpha[j + BASE], Double.NEGATIVE_INFINITY);
+            logAlpha[j + BASE][0] = Double.NEGATIVE_INFINITY;
             for (int i = 1; i < featureGen.forwardStateMap.size(); i++) {
                 ArrayList<Integer> prevState1 = featureGen.forwardTransition1[i];
                 ArrayList<Integer> prevState2 = featureGen.forwardTransition2[i];
+                if (terms.length < prevState1.size()) {
+                    terms = new double[prevState1.size()];
+                }
                 for (int k = 0; k < prevState1.size(); k++) {
                     int pkID = prevState1.get(k);
                     int pkyID = prevState2.get(k);
@@ -128,8 +132,9 @@ public class LogliComputer implements Schedulable {
                         ArrayList<Integer> feats = featureGen.getFeatures(seq, j, patID);
                         featuresScore += featureGen.computeFeatureScores(feats, lambda);
                     }
-                    logAlpha[j + BASE][i] = Utility.logSumExp(logAlpha[j + BASE][i], logAlpha[j + BASE - 1][pkID] + featuresScore);
+                    terms[k] = logAlpha[j + BASE - 1][pkID] + featuresScore;
                 }
+                logAlpha[j + BASE][i] = Utility.logSumExp(terms, prevState1.size());
             }
         }
         return logAlpha;
@@ -142,12 +147,7 @@ public class LogliComputer implements Schedulable {
      * @return Logarithm of the partition function
      */
     public double computeLogZx(DataSequence seq, double[][] logAlpha) {
-        double logZx = Double.NEGATIVE_INFINITY;
-        int l = seq.length();
-        for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
-            logZx = Utility.logSumExp(logZx, logAlpha[l][i]);
-        }
-        return logZx;
+        return Utility.logSumExp(logAlpha[seq.length()], featureGen.forwardStateMap.size());
     }
     
     /**
@@ -158,9 +158,10 @@ public class LogliComputer implements Schedulable {
     public double[][] computeLogBeta(DataSequence seq) {
         double[][] logBeta = new double[seq.length() + 1][featureGen.backwardStateMap.size()];
         Arrays.fill(logBeta[seq.length()], 0.0);
+        double[] terms = new double[featureGen.params.numLabels];
         for (int j = seq.length() - 1; j > 0; j--) {
-            Arrays.fill(logBeta[j], Double.NEGATIVE_INFINITY);
             for (int i = 0; i < featureGen.backwardStateMap.size(); i++) {
+                int n = 0;
                 for (int y = 0; y < featureGen.params.numLabels; y++) {
                     int skID = featureGen.backwardTransition[i][y];
                     if (skID != -1) {
@@ -169,9 +170,10 @@ public class LogliComputer implements Schedulable {
                             ArrayList<Integer> feats = featureGen.getFeatures(seq, j, patID);
                             featuresScore += featureGen.computeFeatureScores(feats, lambda);
                         }
-                        logBeta[j][i] = Utility.logSumExp(logBeta[j][i], logBeta[j + 1][skID] + featuresScore);
+                        terms[n++] = logBeta[j + 1][skID] + featuresScore;
                     }
                 }
+                logBeta[j][i] = Utility.logSumExp(terms, n);
             }
         }
         return logBeta;
@@ -187,11 +189,14 @@ public class LogliComputer implements Schedulable {
      */
     public double[][] computeMarginal(DataSequence seq, double[][] logAlpha, double[][] logBeta, double logZx) {
         double[][] marginal = new double[featureGen.patternMap.size()][seq.length()];
+        double[] terms = new double[0];
         for (int zID = 0; zID < featureGen.patternMap.size(); zID++) {
+            int n = featureGen.patternTransition1[zID].size();
+            if (terms.length < n) {
+                terms = new double[n];
+            }
             for (int pos = 0; pos < seq.length(); pos++) {
-                marginal[zID][pos] = Double.NEGATIVE_INFINITY;
-                    
-                for (int i = 0; i < featureGen.patternTransition1[zID].size(); i++) {
+                for (int i = 0; i < n; i++) {
                     int piID = featureGen.patternTransition1[zID].get(i);
                     int piyID = featureGen.patternTransition2[zID].get(i);
                         
@@ -200,10 +205,10 @@ public class LogliComputer implements Schedulable {
                         ArrayList<Integer> feats = featureGen.getFeatures(seq, pos, patID);
                         featuresScore += featureGen.computeFeatureScores(feats, lambda);
                     }
-                    marginal[zID][pos] = Utility.logSumExp(marginal[zID][pos], logAlpha[BASE + pos - 1][piID] + logBeta[pos + 1][piyID] + featuresScore);
+                    terms[i] = logAlpha[BASE + pos - 1][piID] + logBeta[pos + 1][piyID] + featuresScore;
                 }
                     
-                marginal[zID][pos] = Math.exp(marginal[zID][pos] - logZx);
+                marginal[zID][pos] = Math.exp(Utility.logSumExp(terms, n) - logZx);
             }
         }
         return marginal;
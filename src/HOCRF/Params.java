@@ -14,6 +14,8 @@ public class Params {
     int numthreads = 1; // Number of parallel threads
     double invSigmaSquare = 1.0; // Inverse of Sigma Squared
     double epsForConvergence = 0.001; // Convergence Precision
+    int beamWidth = 0; // Maximum number of forward states kept at each position by Viterbi (0 for no limit)
+    double beamGap = 0.0; // Maximum score gap to the best forward state at each position kept by Viterbi (0 for no limit)
 
     /**
      * Construct a parameters object.
@@ -36,6 +38,20 @@ public class Params {
         if ((value = options.getProperty("epsForConvergence")) != null) {
             epsForConvergence = Double.parseDouble(value);
         }
+        if ((value = options.getProperty("beamWidth")) != null) {
+            beamWidth = Integer.parseInt(value);
+        }
+        if ((value = options.getProperty("beamGap")) != null) {
+            beamGap = Double.parseDouble(value);
+        }
         numLabels = nl;
     }
+    
+    /**
+     * Check if Viterbi prunes the forward states with a beam.
+     * @return true if the beam width or the beam gap is set
+     */
+    public boolean useBeam() {
+        return beamWidth > 0 || beamGap > 0;
+    }
 }
@@ -32,25 +32,46 @@ public class SentenceFeatGenerator implements Schedulable {
      */
     public Object compute(int taskID) {
         DataSequence seq = (DataSequence) trainData.get(taskID);
-        seq.features = new ArrayList[seq.length()][featGen.patternMap.size()];
+        computeFeatures(seq);
+        return seq;
+    }
+    
+    /**
+     * Compute the feature IDs for all the positions and patterns in a given sequence.
+     * @param seq Data sequence
+     */
+    public void computeFeatures(DataSequence seq) {
+        seq.features = getFeatures(seq);
+    }
+    
+    /**
+     * Return the feature IDs for all the positions and patterns in a given sequence without storing them in the sequence.
+     * The observations of each position are generated and looked up only once.
+     * @param seq Data sequence
+     * @return Map from [pos, patID] to list of feature IDs
+     */
+    public ArrayList<Integer>[][] getFeatures(DataSequence seq) {
+        ArrayList<Integer>[][] features = new ArrayList[seq.length()][featGen.patternMap.size()];
         
         for (int pos = 0; pos < seq.length(); pos++) {
+            ArrayList<Integer> obsIDs = new ArrayList<Integer>();
+            for (String o : featGen.generateObs(seq, pos)) {
+                Integer oID = featGen.getObsIndex(o);
+                if (oID != null) {
+                    obsIDs.add(oID);
+                }
+            }
             for (int patID = 0; patID < featGen.patternMap.size(); patID++) {
-                seq.features[pos][patID] = new ArrayList<Integer>();
-                ArrayList<String> obs = featGen.generateObs(seq, pos);
-                for (String o : obs) {
-                    Integer oID = featGen.getObsIndex(o);
-                    if (oID != null) {
-                        Integer feat = (Integer) featGen.featureMap.get(new FeatureIndex(oID, patID));
-                        if (feat != null) {
-                            seq.features[pos][patID].add(feat);
-                        }
+                features[pos][patID] = new ArrayList<Integer>();
+                for (int oID : obsIDs) {
+                    Integer feat = (Integer) featGen.featureMap.get(new FeatureIndex(oID, patID));
+                    if (feat != null) {
+                        features[pos][patID].add(feat);
                     }
                 }
             }
         }
-		
-        return seq;
+        return features;
     }
 
     /**
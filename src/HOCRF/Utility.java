@@ -26,6 +26,31 @@ public class Utility {
         }
     }
     
+    /**
+     * Return ln(exp(a[0]) + ... + exp(a[n-1])) for the first n elements of an array.
+     * The maximum is found in a first pass and the exponentials are summed in a second pass,
+     * so only one logarithm is needed for all the terms.
+     * @param a Array of real numbers
+     * @param n Number of elements to be used
+     * @return ln(exp(a[0]) + ... + exp(a[n-1]))
+     */
+    public static double logSumExp(double[] a, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            if (a[i] > max) {
+                max = a[i];
+            }
+        }
+        if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) {
+            return max;
+        }
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += Math.exp(a[i] - max);
+        }
+        return max + Math.log(sum);
+    }
+    
     /**
      * Generate all proper prefixes of a label pattern.
      * @param labelPat Label pattern
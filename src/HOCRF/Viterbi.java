@@ -14,19 +14,74 @@ public class Viterbi implements Schedulable {
     FeatureGenerator featureGen; // Feature generator
     double[] lambda; // Lambda vector
     ArrayList data; // List of testing sequences
-    final int BASE = 1; // Base of the logAlpha array
+    ArrayList<Workspace> workspaces; // Per-thread workspaces
+    int numWorkspaces; // Number of workspaces assigned to the threads
+    ThreadLocal<Workspace> threadWorkspace; // Workspace of the current thread
+    int[] lastBackwardStateLabel; // Map from backward state ID to its last label
+    int[] lastForwardStateLabel; // Map from forward state ID to its last label
+    int[] forwardOffsets; // [piID] -> Start of its transitions in forwardTransition1 and forwardTransition2
+    int[] forwardTransition1; // Previous forward state pkID of each transition
+    int[] forwardTransition2; // Backward state pkyID of each transition
+    int[] suffixOffsets; // [sID] -> Start of its suffix patterns in allSuffixes
+    int[] allSuffixes; // Suffix patterns of all the backward states
+    int[] obsRowOffsets; // [obsID] -> Start of its features in obsRowPatterns and obsRowWeights
+    int[] obsRowPatterns; // Pattern ID of each feature, grouped by observation
+    double[] obsRowWeights; // Weight times value of each feature, grouped by observation
+    int[] nextOffsets; // [pkID] -> Start of its transitions in nextStates and nextBackwardStates (beam search only)
+    int[] nextStates; // Next forward state piID of each transition (beam search only)
+    int[] nextBackwardStates; // Backward state pkyID of each transition (beam search only)
+    long numPrunedStates; // Number of forward states pruned by the beam
+    final int BASE = 1; // Base of the maxScore array
 
     /**
      * Construct a Viterbi class.
+     * The transitions, the suffixes and the features of the feature generator are copied
+     * into flat arrays, and the feature weights are multiplied by the feature values once.
      * @param featureGen Feature generator
      * @param lambda Lambda vector
      * @param data Testing data
+     * @param workspaces List of workspaces, extended when there are more threads than workspaces
      */
-    public Viterbi(FeatureGenerator featureGen, double[] lambda, ArrayList data) {
+    public Viterbi(FeatureGenerator featureGen, double[] lambda, ArrayList data, ArrayList<Workspace> workspaces) {
         curID = -1;
         this.featureGen = featureGen;
         this.lambda = lambda;
         this.data = data;
+        this.workspaces = workspaces;
+        numWorkspaces = 0;
+        threadWorkspace = new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue() {
+                return nextWorkspace();
+            }
+        };
+        lastBackwardStateLabel = new int[featureGen.backwardStateMap.size()];
+        for (int sID = 0; sID < lastBackwardStateLabel.length; sID++) {
+            String lastLabel = Utility.getLastLabel(featureGen.backwardStateList.get(sID));
+            lastBackwardStateLabel[sID] = lastLabel.equals("") ? -1 : Integer.parseInt(lastLabel);
+        }
+        lastForwardStateLabel = new int[featureGen.forwardStateMap.size()];
+        for (Object obj : featureGen.forwardStateMap.entrySet()) {
+            Map.Entry entry = (Map.Entry) obj;
+            String lastLabel = Utility.getLastLabel((String) entry.getKey());
+            lastForwardStateLabel[(Integer) entry.getValue()] = lastLabel.equals("") ? -1 : Integer.parseInt(lastLabel);
+        }
+        buildTransitions();
+        buildObservationRows();
+        if (featureGen.params.useBeam()) {
+            buildNextStates();
+        }
+    }
+    
+    /**
+     * Assign the next workspace to a thread.
+     * @return The workspace
+     */
+    synchronized Workspace nextWorkspace() {
+        if (numWorkspaces == workspaces.size()) {
+            workspaces.add(new Workspace(featureGen));
+        }
+        return workspaces.get(numWorkspaces++);
     }
     
     /**
@@ -36,55 +91,337 @@ public class Viterbi implements Schedulable {
      */
     public Object compute(int taskID) {
         DataSequence seq = (DataSequence) data.get(taskID);
-        double maxScore[][] = new double[seq.length() + 1][featureGen.forwardStateMap.size()];
-        String trace[][] = new String[seq.length()][featureGen.forwardStateMap.size()];
+        Workspace ws = threadWorkspace.get();
+        int numStates = featureGen.forwardStateMap.size();
+        computeMaxScores(seq, ws);
+        
+        // Compute max score for last element
+        double max = Double.NEGATIVE_INFINITY;
+        int stateMax = -1;
+        int lastRow = (seq.length() + BASE - 1) * numStates;
+        for (int i = 0; i < numStates; i++) {
+            if (max < ws.maxScore[lastRow + i]) {
+                max = ws.maxScore[lastRow + i];
+                stateMax = i;
+            }
+        }
+        if (stateMax == -1) {
+            // No labeling has a finite score, keep the current labels
+            return seq;
+        }
+
+        // Trace back
+        int currState = stateMax;
+        for (int currPos = seq.length() - 1; currPos >= 0; currPos--) {
+            seq.set_y(currPos, ws.traceLabel[currPos * numStates + currState]);
+            currState = ws.traceState[currPos * numStates + currState];
+        }
 
-        Arrays.fill(maxScore[0], Double.NEGATIVE_INFINITY);
-        maxScore[0][0] = 0.0;
+        return seq;
+    }
+    
+    /**
+     * Compute the potentials, the max scores and the backpointers of all the forward states at all the positions.
+     * The observations of each position are looked up once and their features are added to the pattern scores
+     * of the position. Nothing is stored in the sequence, so it can be decoded again with another feature generator.
+     * Without beam, the potentials of all the backward states are computed. With beam, only
+     * the backward states reached from the kept states are scored and the other potentials are not valid.
+     * @param seq Data sequence
+     * @param ws Workspace to store the potentials, the max scores and the backpointers
+     */
+    public void computeMaxScores(DataSequence seq, Workspace ws) {
+        ws.ensureLength(seq.length());
+        if (featureGen.params.useBeam()) {
+            computeBeamMaxScores(seq, ws);
+        } else {
+            computePotential(seq, ws);
+            computeExactMaxScores(seq, ws);
+        }
+    }
+    
+    /**
+     * Compute the total feature score of each pattern at a position.
+     * @param seq Data sequence
+     * @param pos Input position
+     * @param patScores Array to store the scores, indexed by patID
+     */
+    public void computePatternScores(DataSequence seq, int pos, double[] patScores) {
+        Arrays.fill(patScores, 0.0);
+        for (String o : featureGen.generateObs(seq, pos)) {
+            Integer oID = featureGen.getObsIndex(o);
+            if (oID != null) {
+                for (int i = obsRowOffsets[oID]; i < obsRowOffsets[oID + 1]; i++) {
+                    patScores[obsRowPatterns[i]] += obsRowWeights[i];
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compute the score of a backward state from the pattern scores of its suffixes.
+     * @param sID Backward state ID
+     * @param patScores Pattern scores of the position
+     * @return The potential of the backward state
+     */
+    double computeStatePotential(int sID, double[] patScores) {
+        double res = 0.0;
+        for (int t = suffixOffsets[sID]; t < suffixOffsets[sID + 1]; t++) {
+            res += patScores[allSuffixes[t]];
+        }
+        return res;
+    }
+    
+    /**
+     * Compute the score of each backward state at each position from its suffix patterns.
+     * @param seq Data sequence
+     * @param ws Workspace to store the potentials, indexed by [pos, sID]
+     */
+    public void computePotential(DataSequence seq, Workspace ws) {
+        int numStates = featureGen.backwardStateMap.size();
+        for (int j = 0; j < seq.length(); j++) {
+            computePatternScores(seq, j, ws.patScores);
+            for (int sID = 0; sID < numStates; sID++) {
+                ws.potential[j * numStates + sID] = computeStatePotential(sID, ws.patScores);
+            }
+        }
+    }
+    
+    /**
+     * Compute the max scores and the backpointers from the potentials without pruning.
+     * @param seq Data sequence
+     * @param ws Workspace with the potentials, to store the max scores and the backpointers
+     */
+    public void computeExactMaxScores(DataSequence seq, Workspace ws) {
+        int numStates = featureGen.forwardStateMap.size();
+        int numBackward = featureGen.backwardStateMap.size();
+        double[] maxScore = ws.maxScore;
+        Arrays.fill(maxScore, 0, numStates, Double.NEGATIVE_INFINITY);
+        maxScore[0] = 0.0;
         for (int j = 0; j < seq.length(); j++) {
-            Arrays.fill(maxScore[j + BASE], Double.NEGATIVE_INFINITY);
-            for (int i = 1; i < featureGen.forwardStateMap.size(); i++) {
-                ArrayList<Integer> prevState1 = featureGen.forwardTransition1[i];
-                ArrayList<Integer> prevState2 = featureGen.forwardTransition2[i];
-                for (int k = 0; k < prevState1.size(); k++) {
-                    int pkID = prevState1.get(k);
-                    int pkyID = prevState2.get(k);
-                    String pky = featureGen.backwardStateList.get(pkyID);
-                    ArrayList<Feature> features = featureGen.generateFeatures(seq, j, pky);
-                    ArrayList<Integer> feats = featureGen.getFeatureID(features);
-                    double featuresScore = featureGen.computeFeatureScores(feats, lambda);
-                    if (maxScore[j + BASE][i] < featuresScore + maxScore[j + BASE - 1][pkID]) {
-                        maxScore[j + BASE][i] = featuresScore + maxScore[j + BASE - 1][pkID];
-                        trace[j][i] = pkID + " " + Utility.getLastLabel(pky);
+            int row = (j + BASE) * numStates;
+            int prevRow = row - numStates;
+            Arrays.fill(maxScore, row, row + numStates, Double.NEGATIVE_INFINITY);
+            for (int i = 1; i < numStates; i++) {
+                for (int k = forwardOffsets[i]; k < forwardOffsets[i + 1]; k++) {
+                    int pkID = forwardTransition1[k];
+                    int pkyID = forwardTransition2[k];
+                    double score = ws.potential[j * numBackward + pkyID] + maxScore[prevRow + pkID];
+                    if (maxScore[row + i] < score) {
+                        maxScore[row + i] = score;
+                        ws.traceState[j * numStates + i] = pkID;
+                        ws.traceLabel[j * numStates + i] = lastBackwardStateLabel[pkyID];
                     }
                 }
             }
         }
+    }
+    
+    /**
+     * Compute the max scores and the backpointers with beam search.
+     * Only the forward states kept by the beam at the previous position are extended,
+     * so the cost depends on the beam size instead of the number of forward states.
+     * The potentials are computed lazily: only the backward states reached from the kept states are scored.
+     * @param seq Data sequence
+     * @param ws Workspace to store the potentials of the scored backward states, the max scores and the backpointers
+     */
+    public void computeBeamMaxScores(DataSequence seq, Workspace ws) {
+        int numStates = featureGen.forwardStateMap.size();
+        int numBackward = featureGen.backwardStateMap.size();
+        double[] maxScore = ws.maxScore;
+        int[] kept = ws.beamStates;
+        int numKept = 1;
+        long numPruned = 0;
         
-        // Compute max score for last element
-        double max = Double.NEGATIVE_INFINITY;
-        String tracemax = "";
-        for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
-            if (max < maxScore[seq.length() + BASE - 1][i]) {
-                max = maxScore[seq.length() + BASE - 1][i];
-                tracemax = trace[seq.length() - 1][i];
+        Arrays.fill(maxScore, 0, numStates, Double.NEGATIVE_INFINITY);
+        maxScore[0] = 0.0;
+        kept[0] = 0;
+        for (int j = 0; j < seq.length(); j++) {
+            int row = (j + BASE) * numStates;
+            int prevRow = row - numStates;
+            Arrays.fill(maxScore, row, row + numStates, Double.NEGATIVE_INFINITY);
+            computePatternScores(seq, j, ws.patScores);
+            for (int t = 0; t < numKept; t++) {
+                int pkID = kept[t];
+                for (int s = nextOffsets[pkID]; s < nextOffsets[pkID + 1]; s++) {
+                    int i = nextStates[s];
+                    int pkyID = nextBackwardStates[s];
+                    double potential = computeStatePotential(pkyID, ws.patScores);
+                    ws.potential[j * numBackward + pkyID] = potential;
+                    double score = maxScore[prevRow + pkID] + potential;
+                    if (maxScore[row + i] < score) {
+                        maxScore[row + i] = score;
+                        ws.traceState[j * numStates + i] = pkID;
+                        ws.traceLabel[j * numStates + i] = lastBackwardStateLabel[pkyID];
+                    }
+                }
             }
+            int n = collectStates(maxScore, row, numStates, kept);
+            numKept = pruneStates(maxScore, row, kept, n, ws.beamScores);
+            numPruned += n - numKept;
         }
-
-        // Trace back
-        int currPos = seq.length() - 1;
-        while (currPos >= 0) {
-            StringTokenizer toks = new StringTokenizer(tracemax);
-            int prevPat = Integer.parseInt(toks.nextToken());
-            int currY = Integer.parseInt(toks.nextToken());
-            seq.set_y(currPos, currY);
-            currPos--;
-            if (currPos >= 0) {
-                tracemax = trace[currPos][prevPat];
+        addPrunedStates(numPruned);
+    }
+    
+    /**
+     * Collect the reachable forward states in a row of the max scores.
+     * @param maxScore Max scores
+     * @param row Start of the row
+     * @param numStates Number of forward states
+     * @param states Output array of the reachable states
+     * @return Number of reachable states
+     */
+    int collectStates(double[] maxScore, int row, int numStates, int[] states) {
+        int n = 0;
+        for (int i = 0; i < numStates; i++) {
+            if (maxScore[row + i] != Double.NEGATIVE_INFINITY) {
+                states[n++] = i;
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Keep the best states among the reachable forward states in a row and set the scores of the others to negative infinity.
+     * A state is kept if it is among the beamWidth best states and its score is within beamGap of the best score.
+     * @param maxScore Max scores
+     * @param row Start of the row
+     * @param states Reachable states, replaced by the kept states
+     * @param n Number of reachable states
+     * @param scores Scratch buffer for the scores of the reachable states
+     * @return Number of kept states
+     */
+    int pruneStates(double[] maxScore, int row, int[] states, int n, double[] scores) {
+        for (int t = 0; t < n; t++) {
+            scores[t] = maxScore[row + states[t]];
+        }
+        Arrays.sort(scores, 0, n);
+        
+        int limit = n;
+        double threshold = Double.NEGATIVE_INFINITY;
+        if (featureGen.params.beamWidth > 0 && n > featureGen.params.beamWidth) {
+            limit = featureGen.params.beamWidth;
+            threshold = scores[n - limit];
+        }
+        if (featureGen.params.beamGap > 0 && n > 0) {
+            threshold = Math.max(threshold, scores[n - 1] - featureGen.params.beamGap);
+        }
+        
+        int numAbove = 0;
+        for (int t = 0; t < n; t++) {
+            if (scores[t] > threshold) {
+                numAbove++;
+            }
+        }
+        int numTies = limit - numAbove;
+        int numKept = 0;
+        for (int t = 0; t < n; t++) {
+            double score = maxScore[row + states[t]];
+            if (score > threshold || (score == threshold && numTies-- > 0)) {
+                states[numKept++] = states[t];
+            } else {
+                maxScore[row + states[t]] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        return numKept;
+    }
+    
+    /**
+     * Add the number of pruned states of a sequence to the total.
+     * @param n Number of pruned states
+     */
+    synchronized void addPrunedStates(long n) {
+        numPrunedStates += n;
+    }
+    
+    /**
+     * Return the number of forward states pruned by the beam so far.
+     * A state is counted once for each position where it is reachable but pruned.
+     * @return Number of pruned states
+     */
+    public synchronized long getNumPrunedStates() {
+        return numPrunedStates;
+    }
+    
+    /**
+     * Build the flat forward transitions and suffix patterns from the lists of the feature generator.
+     */
+    void buildTransitions() {
+        int numStates = featureGen.forwardStateMap.size();
+        forwardOffsets = new int[numStates + 1];
+        for (int i = 0; i < numStates; i++) {
+            int size = (featureGen.forwardTransition1[i] == null) ? 0 : featureGen.forwardTransition1[i].size();
+            forwardOffsets[i + 1] = forwardOffsets[i] + size;
+        }
+        forwardTransition1 = new int[forwardOffsets[numStates]];
+        forwardTransition2 = new int[forwardOffsets[numStates]];
+        for (int i = 0; i < numStates; i++) {
+            for (int k = forwardOffsets[i]; k < forwardOffsets[i + 1]; k++) {
+                forwardTransition1[k] = featureGen.forwardTransition1[i].get(k - forwardOffsets[i]);
+                forwardTransition2[k] = featureGen.forwardTransition2[i].get(k - forwardOffsets[i]);
+            }
+        }
+        
+        int numBackward = featureGen.backwardStateMap.size();
+        suffixOffsets = new int[numBackward + 1];
+        for (int sID = 0; sID < numBackward; sID++) {
+            suffixOffsets[sID + 1] = suffixOffsets[sID] + featureGen.allSuffixes[sID].size();
+        }
+        allSuffixes = new int[suffixOffsets[numBackward]];
+        for (int sID = 0; sID < numBackward; sID++) {
+            for (int t = suffixOffsets[sID]; t < suffixOffsets[sID + 1]; t++) {
+                allSuffixes[t] = featureGen.allSuffixes[sID].get(t - suffixOffsets[sID]);
+            }
+        }
+    }
+    
+    /**
+     * Group the features by observation, with the products of their weights and values.
+     * The features of an observation are then added to the pattern scores without any feature map lookup.
+     */
+    void buildObservationRows() {
+        int numObs = featureGen.obsMap.size();
+        obsRowOffsets = new int[numObs + 1];
+        for (Object obj : featureGen.featureMap.keySet()) {
+            obsRowOffsets[((FeatureIndex) obj).obsID + 1]++;
+        }
+        for (int oID = 0; oID < numObs; oID++) {
+            obsRowOffsets[oID + 1] += obsRowOffsets[oID];
+        }
+        obsRowPatterns = new int[obsRowOffsets[numObs]];
+        obsRowWeights = new double[obsRowOffsets[numObs]];
+        int[] next = Arrays.copyOf(obsRowOffsets, numObs);
+        for (Object obj : featureGen.featureMap.entrySet()) {
+            Map.Entry entry = (Map.Entry) obj;
+            FeatureIndex index = (FeatureIndex) entry.getKey();
+            int feat = (Integer) entry.getValue();
+            int pos = next[index.obsID]++;
+            obsRowPatterns[pos] = index.patID;
+            obsRowWeights[pos] = lambda[feat] * featureGen.featureList.get(feat).value;
+        }
+    }
+    
+    /**
+     * Build the lists of the forward states that each forward state can transit to.
+     */
+    void buildNextStates() {
+        int numStates = featureGen.forwardStateMap.size();
+        nextOffsets = new int[numStates + 1];
+        for (int k = 0; k < forwardTransition1.length; k++) {
+            nextOffsets[forwardTransition1[k] + 1]++;
+        }
+        for (int pkID = 0; pkID < numStates; pkID++) {
+            nextOffsets[pkID + 1] += nextOffsets[pkID];
+        }
+        nextStates = new int[forwardTransition1.length];
+        nextBackwardStates = new int[forwardTransition1.length];
+        int[] next = Arrays.copyOf(nextOffsets, numStates);
+        for (int i = 0; i < numStates; i++) {
+            for (int k = forwardOffsets[i]; k < forwardOffsets[i + 1]; k++) {
+                int pos = next[forwardTransition1[k]]++;
+                nextStates[pos] = i;
+                nextBackwardStates[pos] = forwardTransition2[k];
             }
         }
-
-        return seq;
     }
     
     /**
@@ -0,0 +1,49 @@
+package HOCRF;
+
+/**
+ * Reusable arrays for the Viterbi algorithms of one thread
+ * All the arrays are flat and row-major. They grow to the longest sequence seen
+ * and are reused for the next sequences.
+ * @author Nguyen Viet Cuong
+ */
+public class Workspace {
+
+    int numForwardStates; // Row size of the forward arrays
+    int numBackwardStates; // Row size of the potential array
+    int length; // Maximum sequence length supported by the current arrays
+
+    double[] maxScore; // [pos + 1, piID] -> Max score of the labelings ending at a forward state
+    int[] traceState; // [pos, piID] -> Viterbi backpointer to the previous forward state
+    int[] traceLabel; // [pos, piID] -> Label at pos on the best labeling ending at a forward state
+    double[] potential; // [pos, sID] -> Potential of a backward state
+    double[] patScores; // [patID] -> Total feature score of a pattern at the current position
+    int[] beamStates; // Forward states kept by the beam at the current position (beam search only)
+    double[] beamScores; // Scratch buffer for the scores of the states of a row (beam search only)
+
+    /**
+     * Construct an empty workspace for a feature generator.
+     * @param featureGen Feature generator
+     */
+    public Workspace(FeatureGenerator featureGen) {
+        numForwardStates = featureGen.forwardStateMap.size();
+        numBackwardStates = featureGen.backwardStateMap.size();
+        length = -1;
+        patScores = new double[featureGen.patternMap.size()];
+        beamStates = new int[numForwardStates];
+        beamScores = new double[numForwardStates];
+    }
+
+    /**
+     * Make sure that the arrays can hold a sequence of a given length.
+     * @param len Sequence length
+     */
+    public void ensureLength(int len) {
+        if (len > length) {
+            length = Math.max(len, 2 * length);
+            maxScore = new double[(length + 1) * numForwardStates];
+            traceState = new int[length * numForwardStates];
+            traceLabel = new int[length * numForwardStates];
+            potential = new double[length * numBackwardStates];
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Immutable transition tables of the forward, backward and marginal algorithms
+ * Each list of transitions is stored as a range of flat int arrays (CSR layout): the transitions
+ * of an index i are at positions offsets[i] to offsets[i + 1] - 1 of the value arrays.
+ * @author Nguyen Viet Cuong
+ */
+public class CompiledLattice {
+
+    final int numLabels; // Number of labels
+    final int[] forwardOffsets; // Map from piID to the start of its transitions
+    final int[] forwardTransition1; // pkID of the forward transitions (see paper)
+    final int[] forwardTransition2; // pkyID of the forward transitions (see paper)
+    final int[] nextOffsets; // Map from pkID to the start of the forward transitions leaving it
+    final int[] nextStates; // piID of the forward transitions leaving each pkID
+    final int[] nextBackwardStates; // pkyID of the forward transitions leaving each pkID
+    final int[] backwardTransition; // [siID, y] -> skID (see paper), -1 if y cannot follow siID
+    final int[] suffixOffsets; // Map from sID to the start of its suffixes
+    final int[] allSuffixes; // patID of the suffixes of the backward states
+    final int[] patternOffsets; // Map from patID to the start of its transitions
+    final int[] patternTransition1; // piID of the pattern transitions (see paper)
+    final int[] patternTransition2; // piyID of the pattern transitions (see paper)
+
+    /**
+     * Compile the transition tables of a feature generator.
+     * @param featureGen Feature generator with its pattern and state maps and the last labels of its states
+     * @param automaton Suffix automaton of the patterns and the states
+     */
+    public CompiledLattice(FeatureGenerator featureGen, SuffixAutomaton automaton) {
+        numLabels = featureGen.params.numLabels;
+        LabelPattern labelPattern = featureGen.labelPattern;
+        LongIntMap forwardStateMap = featureGen.forwardStateMap;
+        LongIntMap backwardStateMap = featureGen.backwardStateMap;
+        int numForward = forwardStateMap.size();
+        int numBackward = backwardStateMap.size();
+        int numPatterns = featureGen.patternMap.size();
+        boolean isCRF = (featureGen.params.maxSegment == 1);
+
+        // Count the forward and pattern transitions
+        forwardOffsets = new int[numForward + 1];
+        nextOffsets = new int[numForward + 1];
+        patternOffsets = new int[numPatterns + 1];
+        for (int pos = 0; pos < numForward; pos++) {
+            long pk = forwardStateMap.getKey(pos);
+            int pkID = forwardStateMap.getValue(pos);
+            int node = automaton.getNode(pk);
+            for (int y = 0; y < numLabels; y++) {
+                if (y != featureGen.lastForwardStateLabel[pkID] || isCRF) {
+                    forwardOffsets[automaton.getLongestForwardSuffix(node, y) + 1]++;
+                    nextOffsets[pkID + 1]++;
+                    for (int zID : automaton.getPatternSuffixes(automaton.getNode(labelPattern.extend(pk, y)))) {
+                        patternOffsets[zID + 1]++;
+                    }
+                }
+            }
+        }
+        accumulate(forwardOffsets);
+        accumulate(nextOffsets);
+        accumulate(patternOffsets);
+
+        // Fill the forward and pattern transitions in the order of the forward states
+        forwardTransition1 = new int[forwardOffsets[numForward]];
+        forwardTransition2 = new int[forwardOffsets[numForward]];
+        nextStates = new int[nextOffsets[numForward]];
+        nextBackwardStates = new int[nextOffsets[numForward]];
+        patternTransition1 = new int[patternOffsets[numPatterns]];
+        patternTransition2 = new int[patternOffsets[numPatterns]];
+        int[] forwardPos = Arrays.copyOf(forwardOffsets, numForward);
+        int[] patternPos = Arrays.copyOf(patternOffsets, numPatterns);
+        for (int pos = 0; pos < numForward; pos++) {
+            long pk = forwardStateMap.getKey(pos);
+            int pkID = forwardStateMap.getValue(pos);
+            int node = automaton.getNode(pk);
+            for (int y = 0; y < numLabels; y++) {
+                if (y != featureGen.lastForwardStateLabel[pkID] || isCRF) {
+                    long pky = labelPattern.extend(pk, y);
+                    int pkyID = backwardStateMap.get(pky);
+                    int piID = automaton.getLongestForwardSuffix(node, y);
+                    forwardTransition1[forwardPos[piID]] = pkID;
+                    forwardTransition2[forwardPos[piID]++] = pkyID;
+                    for (int zID : automaton.getPatternSuffixes(automaton.getNode(pky))) {
+                        patternTransition1[patternPos[zID]] = pkID;
+                        patternTransition2[patternPos[zID]++] = pkyID;
+                    }
+                }
+            }
+        }
+
+        // Invert the forward transitions
+        int[] nextPos = Arrays.copyOf(nextOffsets, numForward);
+        for (int piID = 0; piID < numForward; piID++) {
+            for (int k = forwardOffsets[piID]; k < forwardOffsets[piID + 1]; k++) {
+                int pkID = forwardTransition1[k];
+                nextStates[nextPos[pkID]] = piID;
+                nextBackwardStates[nextPos[pkID]++] = forwardTransition2[k];
+            }
+        }
+
+        // Build the backward transitions and the suffixes of the backward states
+        backwardTransition = new int[numBackward * numLabels];
+        suffixOffsets = new int[numBackward + 1];
+        ArrayList<Integer>[] suffixes = new ArrayList[numBackward];
+        for (int pos = 0; pos < numBackward; pos++) {
+            long si = backwardStateMap.getKey(pos);
+            int siID = backwardStateMap.getValue(pos);
+            int lastLabel = labelPattern.getLastLabel(si);
+            int node = automaton.getNode(si);
+            for (int y = 0; y < numLabels; y++) {
+                if (y != lastLabel || isCRF) {
+                    backwardTransition[siID * numLabels + y] = automaton.getLongestBackwardSuffix(node, y);
+                } else {
+                    backwardTransition[siID * numLabels + y] = -1;
+                }
+            }
+            suffixes[siID] = automaton.getPatternSuffixes(node);
+            suffixOffsets[siID + 1] = suffixes[siID].size();
+        }
+        accumulate(suffixOffsets);
+        allSuffixes = new int[suffixOffsets[numBackward]];
+        for (int siID = 0; siID < numBackward; siID++) {
+            for (int i = 0; i < suffixes[siID].size(); i++) {
+                allSuffixes[suffixOffsets[siID] + i] = suffixes[siID].get(i);
+            }
+        }
+    }
+
+    /**
+     * Turn the counts of an offset array into offsets.
+     * @param offsets Array with the count of index i at position i + 1
+     */
+    static void accumulate(int[] offsets) {
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+    }
+
+    /**
+     * Return the number of forward transitions into a forward state.
+     * @param piID Forward state ID
+     * @return Number of transitions
+     */
+    public int numForwardTransitions(int piID) {
+        return forwardOffsets[piID + 1] - forwardOffsets[piID];
+    }
+
+    /**
+     * Return the number of transitions of a pattern.
+     * @param patID Pattern ID
+     * @return Number of transitions
+     */
+    public int numPatternTransitions(int patID) {
+        return patternOffsets[patID + 1] - patternOffsets[patID];
+    }
+
+    /**
+     * Return the backward state reached from a backward state with a label.
+     * @param siID Backward state ID
+     * @param y Label
+     * @return skID, -1 if y cannot follow siID
+     */
+    public int getBackwardTransition(int siID, int y) {
+        return backwardTransition[siID * numLabels + y];
+    }
+}
@@ -14,8 +14,14 @@ public class DataSequence {
     int[] labels; // Label array
     int[] startPos; // Start of a segment
     int[] endPos; // End of a segment
-    int[][][] observationMap; // [startPos, segLength] -> List of observation ID using obsMap
+    int[][][] observationMap; // [startPos, segLength] -> List of observation ID using obsMap (observation codes with feature hashing)
+    int[] segmentOffsets; // [startPos] -> Index of its first segment in featureOffsets (segments ordered by startPos, segLength)
+    int[] featureOffsets; // [segment, patID] -> Start of its feature IDs in featureIDs
+    int[] featureIDs; // Feature IDs of all the segments and patterns (CSR layout, not compiled with feature hashing)
+    int numPatterns; // Number of patterns used in featureOffsets
     LabelMap labelmap; // Map from label strings to their IDs
+    boolean[][] allowedLabels; // [pos, y] -> Whether label y is allowed at pos (null for no constraint)
+    boolean[] forbiddenBoundaries; // [pos] -> Whether a segment boundary before pos is forbidden (null for no constraint)
     
     /**
      * Construct a data sequence from a label map, labels and observations with default segmentation.
@@ -160,6 +166,97 @@ public class DataSequence {
         return observationMap[segStart][segEnd-segStart];
     }
 	
+    /**
+     * Return the index of a subsequence and a pattern in the feature offsets.
+     * The feature IDs of the subsequence and the pattern are stored in featureIDs
+     * from featureOffsets[index] to featureOffsets[index + 1] - 1.
+     * @param segStart Start position of the subsequence
+     * @param segEnd End position of the subsequence
+     * @param patID Pattern ID
+     * @return Index in the feature offsets
+     */
+    public int getFeatureIndex(int segStart, int segEnd, int patID) {
+        return (segmentOffsets[segStart] + segEnd - segStart) * numPatterns + patID;
+    }
+	
+    /**
+     * Restrict the labels allowed at a position.
+     * @param pos Input position
+     * @param ys Allowed labels at the input position
+     */
+    public void setAllowedLabels(int pos, int[] ys) {
+        if (allowedLabels == null) {
+            allowedLabels = new boolean[length()][];
+        }
+        int maxY = -1;
+        for (int y : ys) {
+            maxY = Math.max(maxY, y);
+        }
+        allowedLabels[pos] = new boolean[maxY + 1];
+        for (int y : ys) {
+            allowedLabels[pos][y] = true;
+        }
+    }
+
+    /**
+     * Forbid a segment boundary before a position, i.e. force the position
+     * and the previous one to be in the same segment.
+     * @param pos Input position
+     */
+    public void forbidBoundary(int pos) {
+        if (forbiddenBoundaries == null) {
+            forbiddenBoundaries = new boolean[length() + 1];
+        }
+        forbiddenBoundaries[pos] = true;
+    }
+
+    /**
+     * Remove all the label and boundary constraints.
+     */
+    public void clearConstraints() {
+        allowedLabels = null;
+        forbiddenBoundaries = null;
+    }
+
+    /**
+     * Check if a label is allowed at a position.
+     * @param pos Input position
+     * @param y Label
+     * @return true if the label is allowed, false otherwise
+     */
+    public boolean isLabelAllowed(int pos, int y) {
+        if (allowedLabels == null || allowedLabels[pos] == null) {
+            return true;
+        }
+        return y < allowedLabels[pos].length && allowedLabels[pos][y];
+    }
+
+    /**
+     * Check if a segment boundary is allowed before a position.
+     * The boundaries at the start and the end of the sequence are always allowed.
+     * @param pos Input position
+     * @return true if a segment may start at the input position, false otherwise
+     */
+    public boolean isBoundaryAllowed(int pos) {
+        if (forbiddenBoundaries == null || pos == 0 || pos == length()) {
+            return true;
+        }
+        return !forbiddenBoundaries[pos];
+    }
+
+    /**
+     * Extend the numbers of consecutive positions allowing each label by one position.
+     * Calling this from the first to the last position (or backward) gives the maximum length
+     * of a segment with each label ending (or starting) at the current position.
+     * @param pos Input position
+     * @param runs Numbers of consecutive positions before the input position, updated to include it
+     */
+    public void extendAllowedRuns(int pos, int[] runs) {
+        for (int y = 0; y < runs.length; y++) {
+            runs[y] = isLabelAllowed(pos, y) ? runs[y] + 1 : 0;
+        }
+    }
+
     /**
      * Write a data sequence to a buffered writer.
      * @param bw Buffered writer
@@ -0,0 +1,108 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Parallel.*;
+
+/**
+ * Counter class for the empirical feature scores of the training data
+ * @author Nguyen Viet Cuong
+ */
+public class EmpiricalCounter implements Schedulable {
+
+    int curID; // Current task ID (for parallelization)
+    FeatureGenerator featureGen; // Feature generator
+    ArrayList trainData; // List of training sequences
+    ArrayList<Loglikelihood> partialCounts; // Per-thread empirical feature counts (in the derivatives)
+    ThreadLocal<Loglikelihood> threadCounts; // Empirical feature counts of the current thread
+
+    /**
+     * Construct a counter for the empirical feature scores.
+     * Each thread adds its counts into its own buffer.
+     * The buffers are summed by class LogliReducer after all the tasks are done.
+     * @param fgen Feature generator
+     * @param td List of training sequences
+     */
+    public EmpiricalCounter(FeatureGenerator fgen, ArrayList td) {
+        curID = -1;
+        featureGen = fgen;
+        trainData = td;
+        partialCounts = new ArrayList<Loglikelihood>();
+        threadCounts = new ThreadLocal<Loglikelihood>() {
+            @Override
+            protected Loglikelihood initialValue() {
+                return nextPartialCounts();
+            }
+        };
+    }
+
+    /**
+     * Add the features activated by the true segmentation of a given sequence into the counts of the current thread.
+     * @param taskID Index of the training sequence
+     * @return The counts of the current thread
+     */
+    public Object compute(int taskID) {
+        Loglikelihood res = threadCounts.get();
+        DataSequence seq = (DataSequence) trainData.get(taskID);
+        int segStart, segEnd;
+        for (segStart = 0; segStart < seq.length(); segStart = segEnd + 1) {
+            segEnd = seq.getSegmentEnd(segStart);
+            
+            long labelPat = featureGen.generatePackedLabelPattern(seq, segStart);
+            int sID = -1;
+            for (int len = featureGen.labelPattern.length(labelPat); sID == -1; len--) {
+                // The longest patterns may have been pruned by the frequency cutoff
+                sID = featureGen.backwardStateMap.get(featureGen.labelPattern.suffix(labelPat, len));
+            }
+            for (int k = featureGen.lattice.suffixOffsets[sID]; k < featureGen.lattice.suffixOffsets[sID + 1]; k++) {
+                featureGen.addFeatures(seq, segStart, segEnd - segStart, featureGen.lattice.allSuffixes[k], 1.0, res.derivatives);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Return total number of tasks (for parallelization).
+     * @return Training dataset size
+     */
+    public int getNumTasks() {
+        return trainData.size();
+    }
+
+    /**
+     * Return the next task ID (for parallelization).
+     * @return The next sequence ID
+     */
+    public synchronized int fetchCurrTaskID() {
+        if (curID < getNumTasks()) {
+            curID++;
+        }
+        return curID;
+    }
+
+    /**
+     * Update partial result (for parallelization).
+     * Note that this method does nothing in this case since the counts are accumulated per thread.
+     * @param partialResult Partial result
+     */
+    public void update(Object partialResult) {
+        // Do nothing
+    }
+
+    /**
+     * Assign a new count buffer to a thread.
+     * @return The count buffer
+     */
+    synchronized Loglikelihood nextPartialCounts() {
+        Loglikelihood res = new Loglikelihood(featureGen.getNumFeatures());
+        partialCounts.add(res);
+        return res;
+    }
+
+    /**
+     * Return the count buffers used by the threads.
+     * @return List of count buffers
+     */
+    public List<Loglikelihood> getPartialCounts() {
+        return partialCounts;
+    }
+}
@@ -11,30 +11,34 @@ import Parallel.*;
  */
 public class FeatureGenerator {
 
+    final int SHARDS_PER_THREAD = 4; // Number of shards of the training data per thread when building the feature map
+
     ArrayList<FeatureType> featureTypes; // Feature types list
     int maxOrder; // Maximum order of the Semi-CRF
     Params params; // Parameters
     int[] maxMemory; // Maximum segment length for each label
     
-    HashMap obsMap; // Map from feature observation to its ID
-    HashMap patternMap; // Map from feature pattern to index
-    HashMap featureMap; // Map from FeatureIndex to its ID in lambda vector
-    ArrayList<Feature> featureList; // Map from feature ID to features
+    LabelPattern labelPattern; // Packing of the label patterns into long keys
+    StringIntMap obsMap; // Map from feature observation to its ID
+    LongIntMap patternMap; // Map from packed feature pattern to index
+    LongIntMap featureMap; // Map from FeatureIndex key to its ID in lambda vector
+    double[] featureValues; // Map from feature ID to its value
+    int[] obsRowOffsets; // Map from obsID to the start of its row in obsRowPatterns and obsRowFeatures
+    int[] obsRowPatterns; // Pattern IDs of the features in the observation rows
+    int[] obsRowFeatures; // Feature IDs of the features in the observation rows
+    FeatureHasher hasher; // Feature hashing, null if the features are stored in the dictionaries
+    int[] orderOffsets; // Map from order to the start of its patterns in orderPatterns (with feature hashing)
+    int[] orderPatterns; // Pattern IDs sorted by order (with feature hashing)
     
-    HashMap forwardStateMap; // Map from forward state to index
-    ArrayList<Integer>[] forwardTransition1; // Map from piID to list of pkID (see paper)
-    ArrayList<Integer>[] forwardTransition2; // Map from piID to list of pkyID (see paper)
+    LongIntMap forwardStateMap; // Map from packed forward state to index
     int[] lastForwardStateLabel; // Map from piID to its last label
-    
-    HashMap backwardStateMap; // Map from backward state to index
-    int[][] backwardTransition; // Map from [siID,y] to skID (see paper)
-    ArrayList<Integer>[] allSuffixes; // Map from sID to its suffixes patID
-    ArrayList<String> backwardStateList;
+    LongIntMap backwardStateMap; // Map from packed backward state to index
+    int[] lastBackwardStateLabel; // Map from backward state ID to its last label
+    CompiledLattice lattice; // Forward, backward and pattern transition tables
 	
-    ArrayList<Integer>[] patternTransition1; // Map from z to piID (see paper)
-    ArrayList<Integer>[] patternTransition2; // Map from z to piyID (see paper)
     int[] lastPatternLabel; // Map from pattern ID to its last label
     int[] patternBackwardID; // Map from pattern ID to its backward ID
+    int[] patternOrder; // Map from pattern ID to its order
 	
     /**
      * Constructor a feature generator.
@@ -45,6 +49,10 @@ public class FeatureGenerator {
         featureTypes = fts;
         maxOrder = getMaxOrder();
         params = pr;
+        labelPattern = new LabelPattern(params.numLabels);
+        if (params.useHashing()) {
+            hasher = new FeatureHasher(params.hashBits, params.useSignHash, maxOrder);
+        }
     }
 	
     /**
@@ -55,12 +63,11 @@ public class FeatureGenerator {
     public void initialize(ArrayList trainData) throws Exception {
         createMaxMemory(trainData);
         generateFeatureMap(trainData);
+        buildObservationRows();
         generateForwardStatesMap();
         generateBackwardStatesMap();
         generateSentenceObs(trainData);
-        buildForwardTransition();
-        buildBackwardTransition();
-        buildPatternTransition();
+        buildTransitions();
     }
     
     /**
@@ -72,46 +79,47 @@ public class FeatureGenerator {
         
         // Write observation map
         out.println(obsMap.size());
-        Iterator iter = obsMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String key = (String) iter.next();
-            out.println(key + " " + obsMap.get(key));
+        for (int i = 0; i < obsMap.size(); i++) {
+            out.println(obsMap.getKey(i) + " " + obsMap.getValue(i));
         }
         
         // Write pattern map
         out.println(patternMap.size());
-        iter = patternMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String key = (String) iter.next();
-            out.println(key + " " + patternMap.get(key));
+        for (int i = 0; i < patternMap.size(); i++) {
+            out.println(labelPattern.toString(patternMap.getKey(i)) + " " + patternMap.getValue(i));
         }
         
         // Write feature map
+        int[] obsPos = new int[obsMap.size()];
+        for (int i = 0; i < obsMap.size(); i++) {
+            obsPos[obsMap.getValue(i)] = i;
+        }
+        int[] patPos = new int[patternMap.size()];
+        for (int i = 0; i < patternMap.size(); i++) {
+            patPos[patternMap.getValue(i)] = i;
+        }
         out.println(featureMap.size());
-        iter = featureMap.keySet().iterator();
-        while (iter.hasNext()) {
-            FeatureIndex fi = (FeatureIndex) iter.next();
-            int index = (Integer) featureMap.get(fi);
-            Feature f = featureList.get(index);
-            out.println(f.obs + " " + f.pat + " " + f.value + " " + index);
+        for (int i = 0; i < featureMap.size(); i++) {
+            long key = featureMap.getKey(i);
+            int index = featureMap.getValue(i);
+            String obs = obsMap.getKey(obsPos[(int) (key >>> 32)]);
+            String pat = labelPattern.toString(patternMap.getKey(patPos[(int) key]));
+            out.println(obs + " " + pat + " " + featureValues[index] + " " + index);
         }
         
         // Write forward state map
         out.println(forwardStateMap.size());
-        iter = forwardStateMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String key = (String) iter.next();
-            if (!key.equals("")) {
-                out.println(key + " " + forwardStateMap.get(key));
+        for (int i = 0; i < forwardStateMap.size(); i++) {
+            long key = forwardStateMap.getKey(i);
+            if (key != 0) {
+                out.println(labelPattern.toString(key) + " " + forwardStateMap.getValue(i));
             }
         }
         
         // Write backward state map
         out.println(backwardStateMap.size());
-        iter = backwardStateMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String key = (String) iter.next();
-            out.println(key + " " + backwardStateMap.get(key));
+        for (int i = 0; i < backwardStateMap.size(); i++) {
+            out.println(labelPattern.toString(backwardStateMap.getKey(i)) + " " + backwardStateMap.getValue(i));
         }
 	
 	// Write max memory
@@ -131,7 +139,7 @@ public class FeatureGenerator {
         
         // Read observation map
         int mapSize = Integer.parseInt(in.readLine());
-        obsMap = new HashMap();
+        obsMap = new StringIntMap(mapSize);
         for (int i = 0; i < mapSize; i++) {
             String line = in.readLine();
             StringTokenizer toks = new StringTokenizer(line);
@@ -142,20 +150,19 @@ public class FeatureGenerator {
         
         // Read pattern map
         mapSize = Integer.parseInt(in.readLine());
-        patternMap = new HashMap();
+        patternMap = new LongIntMap(mapSize);
         for (int i = 0; i < mapSize; i++) {
             String line = in.readLine();
             StringTokenizer toks = new StringTokenizer(line);
             String key = toks.nextToken();
             int index = Integer.parseInt(toks.nextToken());
-            patternMap.put(key, index);
+            patternMap.put(labelPattern.parse(key), index);
         }
         
         // Read feature map
         mapSize = Integer.parseInt(in.readLine());
-        featureMap = new HashMap();
-        featureList = new ArrayList<Feature>(mapSize);
-        for (int i = 0; i < mapSize; i++) featureList.add(null);
+        featureMap = new LongIntMap(mapSize);
+        featureValues = new double[mapSize];
         for (int i = 0; i < mapSize; i++) {
             String line = in.readLine();
             StringTokenizer toks = new StringTokenizer(line);
@@ -163,46 +170,42 @@ public class FeatureGenerator {
             String pat = toks.nextToken();
             double value = Double.parseDouble(toks.nextToken());
             int index = Integer.parseInt(toks.nextToken());
-            Feature f = new Feature(obs, pat, value);
-            featureMap.put(getFeatureIndex(f), index);
-            featureList.set(index, f);
+            featureMap.put(getFeatureIndex(new Feature(obs, labelPattern.parse(pat), value)).key(), index);
+            featureValues[index] = value;
         }
         
         // Read forward state map
         mapSize = Integer.parseInt(in.readLine());
-        forwardStateMap = new HashMap();
-        forwardStateMap.put("", new Integer(0));
+        forwardStateMap = new LongIntMap(mapSize);
+        forwardStateMap.put(0L, 0);
         for (int i = 0; i < mapSize-1; i++) {
             String line = in.readLine();
             StringTokenizer toks = new StringTokenizer(line);
             String key = toks.nextToken();
             int index = Integer.parseInt(toks.nextToken());
-            forwardStateMap.put(key, index);
+            forwardStateMap.put(labelPattern.parse(key), index);
         }
         
         // Read backward state map
         mapSize = Integer.parseInt(in.readLine());
-        backwardStateMap = new HashMap();
-        backwardStateList = new ArrayList<String>(mapSize);
-        for (int i = 0; i < mapSize; i++) backwardStateList.add(null);
+        backwardStateMap = new LongIntMap(mapSize);
         for (int i = 0; i < mapSize; i++) {
             String line = in.readLine();
             StringTokenizer toks = new StringTokenizer(line);
             String key = toks.nextToken();
             int index = Integer.parseInt(toks.nextToken());
-            backwardStateMap.put(key, index);
-            backwardStateList.set(index, key);
+            backwardStateMap.put(labelPattern.parse(key), index);
         }
         
         // Read max memory
         maxMemory = new int[params.numLabels];
         for (int i = 0; i < params.numLabels; i++) {
             maxMemory[i] = Integer.parseInt(in.readLine());
+            params.maxSegment = Math.max(params.maxSegment, maxMemory[i]);
         }
 
-        buildForwardTransition();
-        buildBackwardTransition();
-        buildPatternTransition();
+        buildObservationRows();
+        buildTransitions();
 
         in.close();
     }
@@ -213,49 +216,57 @@ public class FeatureGenerator {
      * @return The feature index
      */
     public FeatureIndex getFeatureIndex(Feature f) {
-        Integer obs = (Integer) getObsIndex(f.obs);
-        Integer pat = (Integer) getPatternIndex(f.pat);
-        if (obs == null || pat == null) {
+        int obs = getObsIndex(f.obs);
+        int pat = patternMap.get(f.pat);
+        if (obs == -1 || pat == -1) {
             return null;
         } else {
-            return new FeatureIndex(getObsIndex(f.obs), getPatternIndex(f.pat));
+            return new FeatureIndex(obs, pat);
         }
     }
     
+    /**
+     * Return the number of features, i.e. the size of the weight vector.
+     * @return Number of features
+     */
+    public int getNumFeatures() {
+        return (hasher != null) ? hasher.getNumFeatures() : featureMap.size();
+    }
+    
     /**
      * Get the index of an observation string.
      * @param obs Observation string
-     * @return Observation index
+     * @return Observation index, -1 if there is no such observation
      */
-    public Integer getObsIndex(String obs) {
-        return (Integer) obsMap.get(obs);
+    public int getObsIndex(String obs) {
+        return obsMap.get(obs);
     }
 
     /**
      * Get the index of a pattern string.
      * @param p Pattern string
-     * @return Pattern index
+     * @return Pattern index, -1 if there is no such pattern
      */
-    public Integer getPatternIndex(String p) {
-        return (Integer) patternMap.get(p);
+    public int getPatternIndex(String p) {
+        return patternMap.get(labelPattern.parse(p));
     }
     
     /**
      * Get the index of a forward state.
      * @param p Forward state
-     * @return Index of the forward state
+     * @return Index of the forward state, -1 if there is no such state
      */
-    public Integer getForwardStateIndex(String p) {
-        return (Integer) forwardStateMap.get(p);
+    public int getForwardStateIndex(String p) {
+        return forwardStateMap.get(labelPattern.parse(p));
     }
 
     /**
      * Get the index of a backward state.
      * @param p Backward state
-     * @return Index of the backward state
+     * @return Index of the backward state, -1 if there is no such state
      */
-    public Integer getBackwardStateIndex(String p) {
-        return (Integer) backwardStateMap.get(p);
+    public int getBackwardStateIndex(String p) {
+        return backwardStateMap.get(labelPattern.parse(p));
     }
 
     /**
@@ -321,58 +332,31 @@ public class FeatureGenerator {
     
     /**
      * Generate the observation map, pattern map, feature map, and feature list from training data.
+     * The features are collected in parallel over shards of the data and merged in the order of the sequences,
+     * so the IDs do not depend on the number of threads.
+     * The features occurring less often than the minimum count of their feature type are dropped (see Params).
      * @param trainData List of training sequences
      */
-    public void generateFeatureMap(ArrayList trainData) {
-        obsMap = new HashMap();
-        patternMap = new HashMap();
-        featureMap = new HashMap();
-        featureList = new ArrayList<Feature>();
-        for (int t = 0; t < trainData.size(); t++) {
-            DataSequence seq = (DataSequence) trainData.get(t);
-            int segStart, segEnd;
-            for (segStart = 0; segStart < seq.length(); segStart = segEnd + 1) {
-                segEnd = seq.getSegmentEnd(segStart);
-
-                String labelPat = generateLabelPattern(seq, segStart, segEnd);
-                ArrayList<Feature> features = generateFeatures(seq, segStart, segEnd, labelPat);
-                
-                for (Feature f : features) {
-                    Integer obs_index = getObsIndex(f.obs);
-                    if (obs_index == null) {
-                        obsMap.put(f.obs, obsMap.size());
-                    }
-                    
-                    Integer pat_index = getPatternIndex(f.pat);
-                    if (pat_index == null) {
-                        patternMap.put(f.pat, patternMap.size());
-                    }
-					
-                    FeatureIndex index = getFeatureIndex(f);
-                    if (!featureMap.containsKey(index)) {
-                        featureMap.put(index, featureMap.size());
-                        featureList.add(f);
-                    }
-                }
-            }
-        }
+    public void generateFeatureMap(ArrayList trainData) throws Exception {
+        FeatureMapBuilder builder = new FeatureMapBuilder(trainData, this, SHARDS_PER_THREAD * params.numthreads);
+        Scheduler sch = new Scheduler(builder, params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+        sch.run();
+        builder.merge();
     }
     
     /**
      * Generate the forward state map.
      */
     public void generateForwardStatesMap() {
-        forwardStateMap = new HashMap();
-        forwardStateMap.put("", new Integer(0));
+        forwardStateMap = new LongIntMap();
+        forwardStateMap.put(0L, 0);
         for (int i = 0; i < params.numLabels; i++) {
-            forwardStateMap.put("" + i, new Integer(forwardStateMap.size()));
-        }
-        Iterator iter = patternMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String labelPat = (String) iter.next();
-            ArrayList<String> pats = Utility.generateProperPrefixes(labelPat);
-            for (String pat : pats) {
-                if (getForwardStateIndex(pat) == null) {
+            forwardStateMap.put(labelPattern.extend(0L, i), forwardStateMap.size());
+        }
+        for (int pos = 0; pos < patternMap.size(); pos++) {
+            long labelPat = patternMap.getKey(pos);
+            for (long pat = labelPattern.removeLastLabel(labelPat); labelPattern.length(pat) > 1; pat = labelPattern.removeLastLabel(pat)) {
+                if (forwardStateMap.get(pat) == -1) {
                     forwardStateMap.put(pat, forwardStateMap.size());
                 }
             }
@@ -380,21 +364,18 @@ public class FeatureGenerator {
     }
 
     /**
-     * Generate the backward state map and the backward state list.
+     * Generate the backward state map.
      */
     public void generateBackwardStatesMap() {
-        backwardStateMap = new HashMap();
-        backwardStateList = new ArrayList<String>();
-        Iterator iter = forwardStateMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String p = (String) iter.next();
-            int lastLabel = p.equals("") ? -1 : Integer.parseInt(Utility.getLastLabel(p));
+        backwardStateMap = new LongIntMap();
+        for (int pos = 0; pos < forwardStateMap.size(); pos++) {
+            long p = forwardStateMap.getKey(pos);
+            int lastLabel = labelPattern.getLastLabel(p);
             for (int y = 0; y < params.numLabels; y++) {
                 if (y != lastLabel || params.maxSegment == 1) {
-                    String py = p.equals("") ? y + "" : y + "|" + p;
-                    if (getBackwardStateIndex(py) == null) {
+                    long py = labelPattern.extend(p, y);
+                    if (backwardStateMap.get(py) == -1) {
                         backwardStateMap.put(py, backwardStateMap.size());
-                        backwardStateList.add(py);
                     }
                 }
             }
@@ -410,53 +391,27 @@ public class FeatureGenerator {
      * @return Pattern string
      */
     public String generateLabelPattern(DataSequence seq, int segStart, int segEnd) {
-        String labelPat = "";
+        return labelPattern.toString(generatePackedLabelPattern(seq, segStart));
+    } 
+
+    /**
+     * Generate the maximum posible pattern for a segment as a packed key.
+     * @param seq Data sequence
+     * @param segStart Start position of the segment
+     * @return Packed pattern
+     */
+    public long generatePackedLabelPattern(DataSequence seq, int segStart) {
+        long labelPat = 0;
         int pos = segStart;
         for (int i = 0; i <= maxOrder; i++) {
-            labelPat = labelPat + "|" + seq.y(pos);
+            labelPat += (seq.y(pos) + 1) * labelPattern.powers[i];
             if (pos == 0) {
                 break;
             } else {
                 pos = seq.getSegmentStart(pos - 1);
             }
         }
-        labelPat = labelPat.substring(1);
         return labelPat;
-    } 
-
-    /**
-     * Generate all features activated at a segment with a given label pattern.
-     * @param seq Data sequence
-     * @param segStart Start position of the segment
-     * @param segEnd End position of the segment
-     * @param labelPat Label pattern
-     * @return List of activated features
-     */
-    public ArrayList<Feature> generateFeatures(DataSequence seq, int segStart, int segEnd, String labelPat) {
-        ArrayList<Feature> features = new ArrayList<Feature>();
-        ArrayList<String> suffixes = Utility.generateSuffixes(labelPat);
-        for (String s : suffixes) {
-            ArrayList<Feature> fi = generateFeaturesWithExactPattern(seq, segStart, segEnd, s);
-            features.addAll(fi);
-        }
-        return features;
-    }
-    
-    /**
-     * Generate all features activated at a segment with an exact label pattern.
-     * @param seq Data sequence
-     * @param segStart Start position of the segment
-     * @param segEnd End position of the segment
-     * @param labelPat Exact label pattern of the activated features
-     * @return List of activated features
-     */
-    public ArrayList<Feature> generateFeaturesWithExactPattern(DataSequence seq, int segStart, int segEnd, String labelPat) {
-        ArrayList<Feature> features = new ArrayList<Feature>();
-        for (FeatureType ft : featureTypes) {
-            ArrayList<Feature> fi = ft.generateFeaturesAt(seq, segStart, segEnd, labelPat);
-            features.addAll(fi);
-        }
-        return features;
     }
     
     /**
@@ -475,198 +430,355 @@ public class FeatureGenerator {
     }
     
     /**
-     * Return the index of the longest suffix of a string.
-     * @param p The input string
-     * @param map Map from strings to indices
-     * @return Index of the longest suffix of the input string from the input map.
-     */
-    public Integer getLongestSuffixID(String p, HashMap map) {
-        ArrayList<String> suffixes = Utility.generateSuffixes(p);
-        for (int i = 0; i < suffixes.size(); i++) {
-            Integer index = (Integer) map.get(suffixes.get(i));
-            if (index != null) {
-                return index;
+     * Build the observation-major index of the feature map.
+     * The row of an observation contains the (patID, featureID) pairs of all the features with that observation.
+     * With feature hashing, the feature map is empty and the patterns are indexed by order instead.
+     */
+    public void buildObservationRows() {
+        if (hasher != null) {
+            orderOffsets = new int[maxOrder + 2];
+            for (int patID = 0; patID < patternMap.size(); patID++) {
+                orderOffsets[labelPattern.getOrder(patternMap.getKey(patID)) + 1]++;
             }
+            CompiledLattice.accumulate(orderOffsets);
+            orderPatterns = new int[patternMap.size()];
+            int[] next = Arrays.copyOf(orderOffsets, maxOrder + 1);
+            for (int pos = 0; pos < patternMap.size(); pos++) {
+                orderPatterns[next[labelPattern.getOrder(patternMap.getKey(pos))]++] = patternMap.getValue(pos);
+            }
+        }
+        
+        obsRowOffsets = new int[obsMap.size() + 1];
+        for (int i = 0; i < featureMap.size(); i++) {
+            int obsID = (int) (featureMap.getKey(i) >>> 32);
+            obsRowOffsets[obsID + 1]++;
+        }
+        for (int obsID = 0; obsID < obsMap.size(); obsID++) {
+            obsRowOffsets[obsID + 1] += obsRowOffsets[obsID];
+        }
+        
+        obsRowPatterns = new int[featureMap.size()];
+        obsRowFeatures = new int[featureMap.size()];
+        int[] next = Arrays.copyOf(obsRowOffsets, obsMap.size());
+        for (int i = 0; i < featureMap.size(); i++) {
+            long key = featureMap.getKey(i);
+            int obsID = (int) (key >>> 32);
+            obsRowPatterns[next[obsID]] = (int) key;
+            obsRowFeatures[next[obsID]] = featureMap.getValue(i);
+            next[obsID]++;
         }
-        throw new UnsupportedOperationException("No longest suffix index!\n");
     }
-
+    
     /**
-     * Return the longest suffix of a string.
-     * @param p The input string
-     * @param map Map from strings to indices
-     * @return The longest suffix of the input string from the input map.
-     */
-    public String getLongestSuffix(String p, HashMap map) {
-        ArrayList<String> suffixes = Utility.generateSuffixes(p);
-        for (int i = 0; i < suffixes.size(); i++) {
-            Integer index = (Integer) map.get(suffixes.get(i));
-            if (index != null) {
-                return suffixes.get(i);
+     * Compute the last labels of the states and the patterns and compile the transition tables
+     * from the suffix automaton of the patterns and the states.
+     */
+    public void buildTransitions() {
+        lastForwardStateLabel = new int[forwardStateMap.size()];
+        for (int pos = 0; pos < forwardStateMap.size(); pos++) {
+            lastForwardStateLabel[forwardStateMap.getValue(pos)] = labelPattern.getLastLabel(forwardStateMap.getKey(pos));
+        }
+        lastBackwardStateLabel = new int[backwardStateMap.size()];
+        for (int pos = 0; pos < backwardStateMap.size(); pos++) {
+            lastBackwardStateLabel[backwardStateMap.getValue(pos)] = labelPattern.getLastLabel(backwardStateMap.getKey(pos));
+        }
+        
+        lastPatternLabel = new int[patternMap.size()];
+        patternBackwardID = new int[patternMap.size()];
+        patternOrder = new int[patternMap.size()];
+        for (int pos = 0; pos < patternMap.size(); pos++) {
+            long p = patternMap.getKey(pos);
+            int pID = patternMap.getValue(pos);
+            patternBackwardID[pID] = backwardStateMap.get(p);
+            lastPatternLabel[pID] = labelPattern.getLastLabel(p);
+            patternOrder[pID] = labelPattern.getOrder(p);
+        }
+        
+        lattice = new CompiledLattice(this, new SuffixAutomaton(this));
+    }
+    
+    /**
+     * Check if any feature is activated at a segment for a given pattern.
+     * @param seq Data sequence with its features compiled (its observations with feature hashing)
+     * @param segStart Start position of the segment
+     * @param d Segment length minus one
+     * @param patID Pattern ID
+     * @return true if there is such a feature, false otherwise
+     */
+    public boolean hasFeatures(DataSequence seq, int segStart, int d, int patID) {
+        if (hasher != null) {
+            for (int obsCode : seq.observationMap[segStart][d]) {
+                if (hasher.getOrder(obsCode) == patternOrder[patID]) {
+                    return true;
+                }
             }
+            return false;
         }
-        throw new UnsupportedOperationException("No longest suffix!\n");
-    }	
-
+        int index = seq.getFeatureIndex(segStart, segStart + d, patID);
+        return seq.featureOffsets[index] < seq.featureOffsets[index + 1];
+    }
+    
     /**
-     * Build the information for the forward algorithm.
+     * Add the values of the features activated at a segment for a given pattern, times a factor, to a vector.
+     * With feature hashing, the features are hashed from the observation codes of the segment on the fly,
+     * so they are never stored in the sequence.
+     * @param seq Data sequence with its features compiled (its observations with feature hashing)
+     * @param segStart Start position of the segment
+     * @param d Segment length minus one
+     * @param patID Pattern ID
+     * @param factor Factor of the feature values
+     * @param vector Vector indexed by feature ID, updated by this method
      */
-    public void buildForwardTransition() {
-        forwardTransition1 = new ArrayList[forwardStateMap.size()];
-        forwardTransition2 = new ArrayList[forwardStateMap.size()];
-        lastForwardStateLabel = new int[forwardStateMap.size()];
-        
-        Iterator iter = forwardStateMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String pk = (String) iter.next();
-            int pkID = getForwardStateIndex(pk);
-            lastForwardStateLabel[pkID] = pk.equals("") ? -1 : Integer.parseInt(Utility.getLastLabel(pk));
-            
-            for (int y = 0; y < params.numLabels; y++) {
-                if (y != lastForwardStateLabel[pkID] || params.maxSegment == 1) {
-                    String pky = pk.equals("") ? y + "" : y + "|" + pk;
-                    Integer index = getLongestSuffixID(pky, forwardStateMap);
-                    if (forwardTransition1[index] == null) {
-                        forwardTransition1[index] = new ArrayList<Integer>();
-                        forwardTransition2[index] = new ArrayList<Integer>();
-                    }
-                    forwardTransition1[index].add(pkID);
-                    forwardTransition2[index].add(getBackwardStateIndex(pky));
+    public void addFeatures(DataSequence seq, int segStart, int d, int patID, double factor, double[] vector) {
+        if (hasher != null) {
+            for (int obsCode : seq.observationMap[segStart][d]) {
+                if (hasher.getOrder(obsCode) == patternOrder[patID]) {
+                    long hash = hasher.hashFeature(obsCode, patID);
+                    vector[hasher.getIndex(hash)] += factor * hasher.getValue(hash);
                 }
             }
+            return;
+        }
+        int index = seq.getFeatureIndex(segStart, segStart + d, patID);
+        for (int i = seq.featureOffsets[index]; i < seq.featureOffsets[index + 1]; i++) {
+            vector[seq.featureIDs[i]] += factor * featureValues[seq.featureIDs[i]];
         }
     }
-
+    
     /**
-     * Build the information for the backward algorithm.
-     */
-    public void buildBackwardTransition() {
-        backwardTransition = new int[backwardStateMap.size()][params.numLabels];
-        allSuffixes = new ArrayList[backwardStateMap.size()];
-		
-        Iterator iter = backwardStateMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String si = (String) iter.next();
-            int siID = getBackwardStateIndex(si);
-            int lastLabel = si.equals("") ? -1 : Integer.parseInt(Utility.getLastLabel(si));
-            for (int y = 0; y < params.numLabels; y++) {
-                if (y != lastLabel || params.maxSegment == 1) {
-                    String siy = y + "|" + si;
-                    String sk = getLongestSuffix(siy, backwardStateMap);
-                    backwardTransition[siID][y] = getBackwardStateIndex(sk);
-                } else {
-                    backwardTransition[siID][y] = -1;
+     * Compute the segment potentials (in log scale) shared by the forward, backward, marginal and Viterbi passes.
+     * The potential of a segment under a backward state is the total score of the features
+     * activated at the segment for all the suffix patterns of the state.
+     * @param seq Data sequence with its observations computed
+     * @param lambda Weights of all the features
+     * @param ws Workspace to store the potentials, indexed by [segStart, d, sID]
+     */
+    public void computePotential(DataSequence seq, double[] lambda, Workspace ws) {
+        computePotential(seq, seq.observationMap, lambda, ws);
+    }
+    
+    /**
+     * Compute the segment potentials (in log scale) of a sequence from given observation IDs.
+     * Only the segments allowed by the constraints of the sequence are scored, under the backward states
+     * whose last label is allowed on the whole segment within its maximum memory. The other potentials
+     * are set to negative infinity without computing the pattern scores.
+     * @param seq Data sequence
+     * @param observations Observation IDs of the sequence, indexed by [segStart, d] (see getAllObsIDs)
+     * @param lambda Weights of all the features
+     * @param ws Workspace to store the potentials, indexed by [segStart, d, sID]
+     */
+    public void computePotential(DataSequence seq, int[][][] observations, double[] lambda, Workspace ws) {
+        int numStates = backwardStateMap.size();
+        double[] patScores = ws.patScores;
+        int[] runs = ws.resetRuns();
+        for (int segStart = seq.length() - 1; segStart >= 0; segStart--) {
+            seq.extendAllowedRuns(segStart, runs);
+            int maxLength = 0;
+            if (seq.isBoundaryAllowed(segStart)) {
+                for (int y = 0; y < params.numLabels; y++) {
+                    maxLength = Math.max(maxLength, Math.min(maxMemory[y], runs[y]));
                 }
             }
-            
-            allSuffixes[siID] = new ArrayList<Integer>();
-            ArrayList<String> suffixes = Utility.generateSuffixes(si);
-            for (String suffix : suffixes) {
-                Integer patID = getPatternIndex(suffix);
-                if (patID != null) {
-                    allSuffixes[siID].add(patID);
+            for (int d = 0; d < params.maxSegment && segStart + d < seq.length(); d++) {
+                int base = ws.potentialIndex(segStart, d, 0);
+                if (d >= maxLength || !seq.isBoundaryAllowed(segStart + d + 1)) {
+                    Arrays.fill(ws.potential, base, base + numStates, Double.NEGATIVE_INFINITY);
+                    continue;
+                }
+                computePatternScores(observations[segStart][d], lambda, patScores);
+                for (int sID = 0; sID < numStates; sID++) {
+                    int y = lastBackwardStateLabel[sID];
+                    if (y != -1 && d < maxMemory[y] && d < runs[y]) {
+                        ws.potential[base + sID] = computeStatePotential(sID, patScores);
+                    } else {
+                        ws.potential[base + sID] = Double.NEGATIVE_INFINITY;
+                    }
                 }
             }
         }
     }
-
+    
     /**
-     * Build the information to compute the marginals and expected feature scores.
+     * Compute the potential of a segment under a backward state from the scores of the patterns at the segment.
+     * @param sID Backward state ID
+     * @param patScores Total feature score of each pattern ID at the segment
+     * @return Total score of the suffix patterns of the state
      */
-    public void buildPatternTransition() {
-        patternTransition1 = new ArrayList[patternMap.size()];
-        patternTransition2 = new ArrayList[patternMap.size()];
-        lastPatternLabel = new int[patternMap.size()];
-        patternBackwardID = new int[patternMap.size()];
-        
-        Iterator iter = patternMap.keySet().iterator();
-        while (iter.hasNext()) {
-            String p = (String) iter.next();
-            int pID = getPatternIndex(p).intValue();
-            patternBackwardID[pID] = getBackwardStateIndex(p);
-            String lastY = Utility.getLastLabel(p);
-            if (lastY.equals("")) {
-                lastPatternLabel[pID] = -1;
-            } else {
-                lastPatternLabel[pID] = Integer.parseInt(lastY);
-            }
+    public double computeStatePotential(int sID, double[] patScores) {
+        double featuresScore = 0.0;
+        for (int i = lattice.suffixOffsets[sID]; i < lattice.suffixOffsets[sID + 1]; i++) {
+            featuresScore += patScores[lattice.allSuffixes[i]];
         }
-		
-        Iterator forwardIter = forwardStateMap.keySet().iterator();
-        while (forwardIter.hasNext()) {
-            String pi = (String) forwardIter.next();
-            int lastLabel = pi.equals("") ? -1 : Integer.parseInt(Utility.getLastLabel(pi));
-            int piID = getForwardStateIndex(pi);
-            for (int y = 0; y < params.numLabels; y++) {
-                if (y != lastLabel || params.maxSegment == 1) {
-                    String piy = pi.equals("") ? y + "" : y + "|" + pi;
-                    Integer piyID = getBackwardStateIndex(piy);
-                    ArrayList<String> suffixes = Utility.generateSuffixes(piy);
-                    for (String zi : suffixes) {
-                        Integer ziIndex = getPatternIndex(zi);
-                        if (ziIndex != null) {
-                            if (patternTransition1[ziIndex] == null) {
-                                patternTransition1[ziIndex] = new ArrayList<Integer>();
-                                patternTransition2[ziIndex] = new ArrayList<Integer>();
-                            }
-                            patternTransition1[ziIndex].add(piID);
-                            patternTransition2[ziIndex].add(piyID);
-                        }
-                    }
+        return featuresScore;
+    }
+	
+    /**
+     * Compute the scores of all the patterns for a list of observations in one sweep over the observation rows.
+     * @param obsList List of observation IDs
+     * @param lambda Weights of all the features
+     * @param patScores Output array of the total feature score for each pattern ID
+     */
+    public void computePatternScores(int[] obsList, double[] lambda, double[] patScores) {
+        computePatternScores(obsList, lambda, patScores, 0);
+    }
+    
+    /**
+     * Compute the scores of all the patterns for a list of observations into a row of an array.
+     * @param obsList List of observation IDs
+     * @param lambda Weights of all the features
+     * @param patScores Output array, its row starting at offset holds the total feature score for each pattern ID
+     * @param offset Start of the row in the output array
+     */
+    public void computePatternScores(int[] obsList, double[] lambda, double[] patScores, int offset) {
+        Arrays.fill(patScores, offset, offset + patternMap.size(), 0.0);
+        if (hasher != null) {
+            for (int obsCode : obsList) {
+                int order = hasher.getOrder(obsCode);
+                for (int i = orderOffsets[order]; i < orderOffsets[order + 1]; i++) {
+                    long hash = hasher.hashFeature(obsCode, orderPatterns[i]);
+                    patScores[offset + orderPatterns[i]] += lambda[hasher.getIndex(hash)] * hasher.getValue(hash);
                 }
             }
+            return;
+        }
+        for (int obsID : obsList) {
+            for (int i = obsRowOffsets[obsID]; i < obsRowOffsets[obsID + 1]; i++) {
+                int featID = obsRowFeatures[i];
+                patScores[offset + obsRowPatterns[i]] += lambda[featID] * featureValues[featID];
+            }
         }
     }
     
     /**
-     * Get the IDs of the features activated at a segment for a given pattern.
+     * Return the IDs of the known observations at a segment.
+     * With feature hashing, return the codes of all the observations instead.
      * @param seq Data sequence
      * @param segStart Start position of the segment
      * @param segEnd End position of the segment
-     * @param patID Pattern ID
-     * @return List of feature IDs
+     * @return Array of observation IDs
      */
-    public ArrayList<Integer> getFeatures(DataSequence seq, int segStart, int segEnd, int patID) {
-        ArrayList<Integer> feats = new ArrayList<Integer>();
-        int[] obsList = seq.getObservation(segStart, segEnd);
-        for (int obsID : obsList) {
-            Integer feat = (Integer) featureMap.get(new FeatureIndex(obsID, patID));
-            if (feat != null) {
-                feats.add(feat);
+    public int[] getObsIDs(DataSequence seq, int segStart, int segEnd) {
+        int[][] typeIDs = new int[featureTypes.size()][];
+        for (int k = 0; k < featureTypes.size(); k++) {
+            FeatureType ft = featureTypes.get(k);
+            typeIDs[k] = getObsIDs(ft.generateObsAt(seq, segStart, segEnd), ft);
+        }
+        return concatenate(typeIDs, typeIDs.length);
+    }
+    
+    /**
+     * Return the IDs of the known observations in a list of observations of a feature type.
+     * With feature hashing, return the codes of all the observations instead.
+     * @param obs List of observations
+     * @param ft Feature type of the observations
+     * @return Array of observation IDs
+     */
+    public int[] getObsIDs(ArrayList<String> obs, FeatureType ft) {
+        int[] obsIDs = new int[obs.size()];
+        int n = 0;
+        for (String o : obs) {
+            if (hasher != null) {
+                obsIDs[n++] = hasher.hashObservation(o, ft.order());
+            } else {
+                int oID = getObsIndex(o);
+                if (oID != -1) {
+                    obsIDs[n++] = oID;
+                }
             }
         }
-        return feats;
+        return (n == obsIDs.length) ? obsIDs : Arrays.copyOf(obsIDs, n);
     }
     
     /**
-     * Get the IDs of a list of features.
-     * @param fs List of features
-     * @return List of feature IDs
+     * Return the IDs of the known observations of all the subsequences of a sequence up to the maximum segment length.
+     * The observations of the token-decomposable feature types are generated and looked up once per token,
+     * then composed for each subsequence. The result is the same as calling getObsIDs for each subsequence.
+     * @param seq Data sequence
+     * @return Map from [segStart, segLength - 1] to the array of observation IDs
      */
-    public ArrayList<Integer> getFeatureID(ArrayList<Feature> fs) {
-        ArrayList<Integer> feats = new ArrayList<Integer>();
-        for (Feature f : fs) {
-            Integer feat = (Integer) featureMap.get(getFeatureIndex(f));
-            if (feat != null) {
-                feats.add(feat);
+    public int[][][] getAllObsIDs(DataSequence seq) {
+        ArrayList<int[][]> tokenIDs = new ArrayList<int[][]>(seq.length());
+        for (int pos = 0; pos < seq.length(); pos++) {
+            tokenIDs.add(getTokenObsIDs(seq, pos));
+        }
+        
+        int[][][] res = new int[seq.length()][][];
+        int[][] parts = new int[2 * featureTypes.size() * params.maxSegment][];
+        for (int segStart = 0; segStart < seq.length(); segStart++) {
+            int maxLength = Math.min(params.maxSegment, seq.length() - segStart);
+            res[segStart] = new int[maxLength][];
+            for (int d = 0; d < maxLength; d++) {
+                res[segStart][d] = composeObsIDs(seq, segStart, segStart + d, tokenIDs, parts);
             }
         }
-        return feats;
+        return res;
     }
     
     /**
-     * Compute the feature scores of a list of features and a weight vector.
-     * @param feats List of feature IDs
-     * @param lambda Weights of all the features
-     * @return The total feature score
+     * Return the IDs of the known per-token observations of the token-decomposable feature types at a position.
+     * @param seq Data sequence
+     * @param pos Input position
+     * @return Map from 2 * k to the IDs of the token observations and from 2 * k + 1 to the IDs of the edge observations
+     * of the k-th feature type (null if the feature type is not token-decomposable)
      */
-    public double computeFeatureScores(ArrayList<Integer> feats, double[] lambda) {
-        double featuresScore = 0.0;
-        for (int index : feats) {
-            Feature feat = featureList.get(index);
-            featuresScore += lambda[index] * feat.value;
+    public int[][] getTokenObsIDs(DataSequence seq, int pos) {
+        int[][] res = new int[2 * featureTypes.size()][];
+        for (int k = 0; k < featureTypes.size(); k++) {
+            FeatureType ft = featureTypes.get(k);
+            if (ft.isTokenDecomposable()) {
+                res[2 * k] = getObsIDs(ft.generateTokenObsAt(seq, pos), ft);
+                res[2 * k + 1] = getObsIDs(ft.generateEdgeObsAt(seq, pos), ft);
+            }
         }
-        return featuresScore;
+        return res;
+    }
+    
+    /**
+     * Return the IDs of the known observations at a segment from the per-token observation IDs of its positions.
+     * The observations of the other feature types are generated for the segment.
+     * @param seq Data sequence
+     * @param segStart Start position of the segment
+     * @param segEnd End position of the segment
+     * @param tokenIDs Map from position to its per-token observation IDs (see getTokenObsIDs)
+     * @param parts Scratch buffer with room for 2 * (number of feature types) * (segment length) arrays
+     * @return Array of observation IDs, the same as getObsIDs(seq, segStart, segEnd)
+     */
+    public int[] composeObsIDs(DataSequence seq, int segStart, int segEnd, ArrayList<int[][]> tokenIDs, int[][] parts) {
+        int numParts = 0;
+        for (int k = 0; k < featureTypes.size(); k++) {
+            FeatureType ft = featureTypes.get(k);
+            if (ft.isTokenDecomposable()) {
+                for (int i = segStart; i <= segEnd; i++) {
+                    parts[numParts++] = tokenIDs.get(i)[2 * k];
+                    if (i > segStart) {
+                        parts[numParts++] = tokenIDs.get(i)[2 * k + 1];
+                    }
+                }
+            } else {
+                parts[numParts++] = getObsIDs(ft.generateObsAt(seq, segStart, segEnd), ft);
+            }
+        }
+        return concatenate(parts, numParts);
+    }
+    
+    /**
+     * Concatenate arrays of observation IDs.
+     * @param parts List of arrays
+     * @param numParts Number of arrays to concatenate
+     * @return The concatenated array
+     */
+    static int[] concatenate(int[][] parts, int numParts) {
+        int length = 0;
+        for (int i = 0; i < numParts; i++) {
+            length += parts[i].length;
+        }
+        int[] res = new int[length];
+        int pos = 0;
+        for (int i = 0; i < numParts; i++) {
+            System.arraycopy(parts[i], 0, res, pos, parts[i].length);
+            pos += parts[i].length;
+        }
+        return res;
     }
     
     /**
@@ -676,27 +788,23 @@ public class FeatureGenerator {
         System.out.println("Forward Transition:");
         for (int piID = 0; piID < forwardStateMap.size(); piID++) {
             System.out.println(piID + " --> " + lastForwardStateLabel[piID]);
-            if (forwardTransition1[piID] != null) {
-                for (int i = 0; i < forwardTransition1[piID].size(); i++) {
-                    System.out.println(forwardTransition1[piID].get(i) + " " + forwardTransition2[piID].get(i));
-                }
+            for (int i = lattice.forwardOffsets[piID]; i < lattice.forwardOffsets[piID + 1]; i++) {
+                System.out.println(lattice.forwardTransition1[i] + " " + lattice.forwardTransition2[i]);
             }
         }
         
         System.out.println("Backward Transition:");
         for (int sID = 0; sID < backwardStateMap.size(); sID++) {
             for (int y = 0; y < params.numLabels; y++) {
-                System.out.println(sID + " " + y + " --> " + backwardTransition[sID][y]);
+                System.out.println(sID + " " + y + " --> " + lattice.getBackwardTransition(sID, y));
             }
         }
 
         System.out.println("Pattern Transition:");
         for (int pID = 0; pID < patternMap.size(); pID++) {
             System.out.println(pID + " --> " + lastPatternLabel[pID] + " " + patternBackwardID[pID]);
-            if (patternTransition1[pID] != null) {
-                for (int i = 0; i < patternTransition1[pID].size(); i++) {
-                    System.out.println(patternTransition1[pID].get(i) + " " + patternTransition2[pID].get(i));
-                }
+            for (int i = lattice.patternOffsets[pID]; i < lattice.patternOffsets[pID + 1]; i++) {
+                System.out.println(lattice.patternTransition1[i] + " " + lattice.patternTransition2[i]);
             }
         }
     }
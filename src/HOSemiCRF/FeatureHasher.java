@@ -0,0 +1,106 @@
+package HOSemiCRF;
+
+/**
+ * Feature hashing (hashing trick) for the semi-CRF features
+ * An observation is hashed into a 32-bit code whose lowest bits hold the order of its feature type.
+ * The feature of an observation code and a pattern ID is then hashed into an index of a weight vector
+ * with 2^hashBits entries, and optionally into a sign of the feature value. No dictionary of the
+ * observations or the features is kept, so the memory does not grow with the observation vocabulary.
+ * @author Nguyen Viet Cuong
+ */
+public class FeatureHasher {
+
+    final int ORDER_BITS = 4; // Number of bits of the observation codes holding the order
+    int hashBits; // Number of bits of the weight indices
+    int indexMask; // Mask of the weight indices
+    int orderMask; // Mask of the order in the observation codes
+    boolean useSignHash; // Hash the sign of the feature values
+
+    /**
+     * Construct the feature hashing.
+     * @param hashBits Number of bits of the weight indices
+     * @param useSignHash Hash the sign of the feature values
+     * @param maxOrder Maximum order of the feature types
+     */
+    public FeatureHasher(int hashBits, boolean useSignHash, int maxOrder) {
+        if (hashBits > 30) {
+            throw new UnsupportedOperationException("Too many hash bits!\n");
+        }
+        if (maxOrder >= (1 << ORDER_BITS)) {
+            throw new UnsupportedOperationException("Feature order too high for feature hashing!\n");
+        }
+        this.hashBits = hashBits;
+        this.useSignHash = useSignHash;
+        indexMask = (1 << hashBits) - 1;
+        orderMask = (1 << ORDER_BITS) - 1;
+    }
+
+    /**
+     * Return the number of weights.
+     * @return Size of the weight vector
+     */
+    public int getNumFeatures() {
+        return 1 << hashBits;
+    }
+
+    /**
+     * Hash an observation of a feature type.
+     * @param obs Observation string
+     * @param order Order of the feature type
+     * @return Observation code
+     */
+    public int hashObservation(String obs, int order) {
+        return (int) (mix(obs.hashCode()) << ORDER_BITS) | order;
+    }
+
+    /**
+     * Return the order of the feature type of an observation code.
+     * @param obsCode Observation code
+     * @return Order of the feature type
+     */
+    public int getOrder(int obsCode) {
+        return obsCode & orderMask;
+    }
+
+    /**
+     * Hash the feature of an observation code and a pattern.
+     * @param obsCode Observation code
+     * @param patID Pattern ID
+     * @return Feature hash, use getIndex and getValue to decode it
+     */
+    public long hashFeature(int obsCode, int patID) {
+        return mix(((long) obsCode << 32) | (patID & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Return the weight index of a feature hash.
+     * @param hash Feature hash
+     * @return Index in the weight vector
+     */
+    public int getIndex(long hash) {
+        return (int) hash & indexMask;
+    }
+
+    /**
+     * Return the feature value of a feature hash.
+     * @param hash Feature hash
+     * @return -1 or 1 with sign hashing, 1 otherwise
+     */
+    public double getValue(long hash) {
+        return (useSignHash && hash < 0) ? -1.0 : 1.0;
+    }
+
+    /**
+     * Mix the bits of a key (finalizer of MurmurHash3).
+     * @param key Input key
+     * @return Mixed key
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
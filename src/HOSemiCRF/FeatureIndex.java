@@ -19,6 +19,24 @@ public class FeatureIndex {
         this.patID = patID;
     }
     
+    /**
+     * Return the packed key of this feature index.
+     * @return Key of the feature index in the feature map
+     */
+    public long key() {
+        return key(obsID, patID);
+    }
+    
+    /**
+     * Pack observation and pattern IDs into a key of the feature map.
+     * @param obsID Observation ID
+     * @param patID Pattern ID
+     * @return Key of the feature index
+     */
+    public static long key(int obsID, int patID) {
+        return ((long) obsID << 32) | (patID & 0xFFFFFFFFL);
+    }
+    
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
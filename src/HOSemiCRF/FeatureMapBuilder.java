@@ -0,0 +1,271 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Parallel.*;
+
+/**
+ * Parallel builder of the observation, pattern and feature maps
+ * The training sequences are split into contiguous shards. Each shard collects its distinct
+ * features in the order of their first occurrence, then the shards are merged in the order of the
+ * sequences. The IDs are thus the same as those of a sequential pass, whatever the number of threads.
+ * The occurrences of the features are counted before the IDs are assigned, and the features occurring
+ * less often than the minimum count of their feature type get no ID.
+ * With feature hashing, only the patterns are collected and the observation and feature maps stay empty.
+ * @author Nguyen Viet Cuong
+ */
+public class FeatureMapBuilder implements Schedulable {
+
+    int curID; // Current task ID (for parallelization)
+    ArrayList trainData; // List of training sequences
+    FeatureGenerator featGen; // Feature generator
+    int shardSize; // Number of sequences in each shard
+    Shard[] shards; // Map from shard index to its features
+    int[] minCounts; // Map from feature type index to the minimum number of occurrences of its features
+
+    /**
+     * Features of a shard with shard-local observation and pattern IDs
+     */
+    static class Shard {
+        StringIntMap obsMap = new StringIntMap(); // Map from observation to its local ID
+        LongIntMap patternMap = new LongIntMap(); // Map from packed pattern to its local ID
+        LongIntMap featureMap = new LongIntMap(); // Map from local FeatureIndex key to its position, in the order of the first occurrences
+        double[] values = new double[16]; // Map from feature position to its value
+        int[] types = new int[16]; // Map from feature position to its feature type index
+        int[] counts = new int[16]; // Map from feature position to its number of occurrences
+
+        /**
+         * Return the local ID of an observation, adding it if needed.
+         * @param obs Observation
+         * @return Local observation ID
+         */
+        int getObsID(String obs) {
+            int id = obsMap.get(obs);
+            if (id == -1) {
+                id = obsMap.size();
+                obsMap.put(obs, id);
+            }
+            return id;
+        }
+
+        /**
+         * Return the local ID of the observation of another shard, adding it if needed.
+         * @param shard Other shard
+         * @param obsID Local observation ID in the other shard
+         * @return Local observation ID
+         */
+        int getObsID(Shard shard, int obsID) {
+            int id = obsMap.get(shard.obsMap, obsID);
+            if (id == -1) {
+                id = obsMap.size();
+                obsMap.put(shard.obsMap, obsID, id);
+            }
+            return id;
+        }
+
+        /**
+         * Return the local ID of a packed pattern, adding it if needed.
+         * @param pat Packed pattern
+         * @return Local pattern ID
+         */
+        int getPatternID(long pat) {
+            int id = patternMap.get(pat);
+            if (id == -1) {
+                id = patternMap.size();
+                patternMap.put(pat, id);
+            }
+            return id;
+        }
+
+        /**
+         * Add occurrences of a feature.
+         * @param obsID Local observation ID
+         * @param patID Local pattern ID
+         * @param value Feature value
+         * @param type Feature type index
+         * @param count Number of occurrences
+         */
+        void add(int obsID, int patID, double value, int type, int count) {
+            long index = FeatureIndex.key(obsID, patID);
+            int pos = featureMap.get(index);
+            if (pos == -1) {
+                pos = featureMap.size();
+                featureMap.put(index, pos);
+                if (pos == types.length) {
+                    values = Arrays.copyOf(values, 2 * pos);
+                    types = Arrays.copyOf(types, 2 * pos);
+                    counts = Arrays.copyOf(counts, 2 * pos);
+                }
+                values[pos] = value;
+                types[pos] = type;
+            }
+            counts[pos] += count;
+        }
+    }
+
+    /**
+     * Construct a builder for the feature maps.
+     * @param data Training data
+     * @param fgen Feature generator
+     * @param numShards Number of shards
+     */
+    public FeatureMapBuilder(ArrayList data, FeatureGenerator fgen, int numShards) {
+        curID = -1;
+        trainData = data;
+        featGen = fgen;
+        shardSize = Math.max(1, (data.size() + numShards - 1) / Math.max(1, numShards));
+        shards = new Shard[(data.size() + shardSize - 1) / shardSize];
+        minCounts = new int[fgen.featureTypes.size()];
+        for (int k = 0; k < minCounts.length; k++) {
+            minCounts[k] = fgen.params.getMinFeatureCount(fgen.featureTypes.get(k));
+        }
+    }
+
+    /**
+     * Collect the features of a given shard.
+     * @param taskID Index of the shard
+     * @return The features of the shard
+     */
+    public Object compute(int taskID) {
+        Shard shard = new Shard();
+        int end = Math.min(trainData.size(), (taskID + 1) * shardSize);
+        for (int t = taskID * shardSize; t < end; t++) {
+            collectFeatures((DataSequence) trainData.get(t), shard);
+        }
+        shards[taskID] = shard;
+        return shard;
+    }
+
+    /**
+     * Collect the features of a training sequence into a shard.
+     * The label patterns of the segments are kept packed; they are converted to strings only when the model is written.
+     * @param seq Training sequence
+     * @param shard Shard to be filled
+     */
+    public void collectFeatures(DataSequence seq, Shard shard) {
+        LabelPattern labelPattern = featGen.labelPattern;
+        int segStart, segEnd;
+        for (segStart = 0; segStart < seq.length(); segStart = segEnd + 1) {
+            segEnd = seq.getSegmentEnd(segStart);
+
+            long labelPat = featGen.generatePackedLabelPattern(seq, segStart);
+            for (int len = labelPattern.length(labelPat); len > 0; len--) {
+                long pat = labelPattern.suffix(labelPat, len);
+                int patOrder = labelPattern.getOrder(pat);
+                for (int k = 0; k < featGen.featureTypes.size(); k++) {
+                    FeatureType ft = featGen.featureTypes.get(k);
+                    if (ft.order() != patOrder) {
+                        continue;
+                    }
+                    if (featGen.hasher != null) {
+                        if (!ft.generateObsAt(seq, segStart, segEnd).isEmpty()) {
+                            shard.getPatternID(pat);
+                        }
+                        continue;
+                    }
+                    for (Feature f : ft.generateFeaturesAt(seq, segStart, segEnd, pat, patOrder)) {
+                        shard.add(shard.getObsID(f.obs), shard.getPatternID(pat), f.value, k, 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the shards into the maps of the feature generator in the order of the sequences.
+     * The occurrences of the features are summed over the shards first, then each feature with enough
+     * occurrences gets its global ID at its first occurrence, as in a sequential pass over the data.
+     * The observations and patterns without any such feature are dropped.
+     * With feature hashing, only the patterns are merged.
+     */
+    public void merge() {
+        featGen.obsMap = new StringIntMap();
+        featGen.patternMap = new LongIntMap();
+        featGen.featureMap = new LongIntMap();
+        featGen.featureValues = new double[0];
+        if (featGen.hasher != null) {
+            for (Shard shard : shards) {
+                for (int pos = 0; pos < shard.patternMap.size(); pos++) {
+                    long pat = shard.patternMap.getKey(pos);
+                    if (featGen.patternMap.get(pat) == -1) {
+                        featGen.patternMap.put(pat, featGen.patternMap.size());
+                    }
+                }
+            }
+            return;
+        }
+
+        Shard all = new Shard();
+        for (Shard shard : shards) {
+            int[] obsIDs = new int[shard.obsMap.size()];
+            int[] patIDs = new int[shard.patternMap.size()];
+            Arrays.fill(obsIDs, -1);
+            Arrays.fill(patIDs, -1);
+            for (int i = 0; i < shard.featureMap.size(); i++) {
+                long localIndex = shard.featureMap.getKey(i);
+                int localObs = (int) (localIndex >>> 32);
+                int localPat = (int) localIndex;
+                if (obsIDs[localObs] == -1) {
+                    obsIDs[localObs] = all.getObsID(shard, localObs);
+                }
+                if (patIDs[localPat] == -1) {
+                    patIDs[localPat] = all.getPatternID(shard.patternMap.getKey(localPat));
+                }
+                all.add(obsIDs[localObs], patIDs[localPat], shard.values[i], shard.types[i], shard.counts[i]);
+            }
+        }
+
+        double[] values = new double[all.featureMap.size()];
+        for (int i = 0; i < all.featureMap.size(); i++) {
+            if (all.counts[i] < minCounts[all.types[i]]) {
+                continue;
+            }
+            long allIndex = all.featureMap.getKey(i);
+            int allObs = (int) (allIndex >>> 32);
+            long pat = all.patternMap.getKey((int) allIndex);
+
+            int obs_index = featGen.obsMap.get(all.obsMap, allObs);
+            if (obs_index == -1) {
+                obs_index = featGen.obsMap.size();
+                featGen.obsMap.put(all.obsMap, allObs, obs_index);
+            }
+
+            int pat_index = featGen.patternMap.get(pat);
+            if (pat_index == -1) {
+                pat_index = featGen.patternMap.size();
+                featGen.patternMap.put(pat, pat_index);
+            }
+
+            values[featGen.featureMap.size()] = all.values[i];
+            featGen.featureMap.put(FeatureIndex.key(obs_index, pat_index), featGen.featureMap.size());
+        }
+        featGen.featureValues = Arrays.copyOf(values, featGen.featureMap.size());
+    }
+
+    /**
+     * Return the number of tasks (for parallelization).
+     * @return Number of shards
+     */
+    public int getNumTasks() {
+        return shards.length;
+    }
+
+    /**
+     * Return the next task ID (for parallelization).
+     * @return Index of the next shard
+     */
+    public synchronized int fetchCurrTaskID() {
+        if (curID < getNumTasks()) {
+            curID++;
+        }
+        return curID;
+    }
+
+    /**
+     * Update partial result (for parallelization).
+     * Note that this method does nothing in this case, the shards are merged after all tasks finish.
+     * @param partialResult Partial result
+     */
+    public synchronized void update(Object partialResult) {
+        // Do nothing
+    }
+}
@@ -22,17 +22,67 @@ public abstract class FeatureType {
      */
     public abstract ArrayList<String> generateObsAt(DataSequence seq, int segStart, int segEnd);
 
+    /**
+     * Check if the observations of a subsequence are composed of per-token observations.
+     * If true, generateObsAt(seq, segStart, segEnd) must return the same list as generateComposedObsAt,
+     * and the observations of each token are generated only once for all the subsequences containing it.
+     * @return true if the feature type is token-decomposable, false otherwise
+     */
+    public boolean isTokenDecomposable() {
+        return false;
+    }
+
+    /**
+     * Return the observations of a token in any subsequence containing it.
+     * @param seq Data sequence
+     * @param pos Position of the token
+     * @return List of observations
+     */
+    public ArrayList<String> generateTokenObsAt(DataSequence seq, int pos) {
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Return the observations of a token in the subsequences containing it and the previous token.
+     * @param seq Data sequence
+     * @param pos Position of the token
+     * @return List of observations
+     */
+    public ArrayList<String> generateEdgeObsAt(DataSequence seq, int pos) {
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Return the list of observations in a subsequence composed of the observations of its tokens:
+     * for each position, its token observations followed by its edge observations if it is not the first.
+     * @param seq Data sequence
+     * @param segStart Start position of the subsequence
+     * @param segEnd End position of the subsequence
+     * @return List of observations
+     */
+    public ArrayList<String> generateComposedObsAt(DataSequence seq, int segStart, int segEnd) {
+        ArrayList<String> obs = new ArrayList<String>();
+        for (int i = segStart; i <= segEnd; i++) {
+            obs.addAll(generateTokenObsAt(seq, i));
+            if (i > segStart) {
+                obs.addAll(generateEdgeObsAt(seq, i));
+            }
+        }
+        return obs;
+    }
+
     /**
      * Generate the features activated at a segment and a label pattern.
      * @param seq Data sequence
      * @param segStart Start position of the segment
      * @param segEnd End position of the segment
-     * @param labelPat Label pattern of the features
+     * @param labelPat Packed label pattern of the features
+     * @param patOrder Order of the label pattern
      * @return List of activated features
      */
-    public ArrayList<Feature> generateFeaturesAt(DataSequence seq, int segStart, int segEnd, String labelPat) {
+    public ArrayList<Feature> generateFeaturesAt(DataSequence seq, int segStart, int segEnd, long labelPat, int patOrder) {
         ArrayList<Feature> features = new ArrayList<Feature>();
-        if (Utility.getOrder(labelPat) == order()) {
+        if (patOrder == order()) {
             ArrayList<String> obs = generateObsAt(seq, segStart, segEnd);
             for (String o : obs) {
                 features.add(new Feature(o, labelPat, 1.0));
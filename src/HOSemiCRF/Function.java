@@ -16,6 +16,9 @@ public class Function implements DiffFunction {
     // Private data structures to compute function value and derivatives
     private Loglikelihood logli; // Loglikelihood values
     private double lambdaCache[]; // Cache of lambda vector for reuse
+    private ArrayList<Loglikelihood> partialLoglis; // Per-thread partial loglikelihoods
+    private ArrayList<Workspace> workspaces; // Per-thread workspaces
+    private double empiricalCounts[]; // Empirical feature counts of the training data
 
     /**
      * Construct a function from feature generator and data.
@@ -26,6 +29,9 @@ public class Function implements DiffFunction {
         featureGen = fgen;        
         trainData = data;
         lambdaCache = null;
+        partialLoglis = new ArrayList<Loglikelihood>();
+        workspaces = new ArrayList<Workspace>();
+        empiricalCounts = null;
     }
 
     /**
@@ -33,7 +39,7 @@ public class Function implements DiffFunction {
      * @return Domain dimension
      */
     public int domainDimension() {
-        return featureGen.featureMap.size();
+        return featureGen.getNumFeatures();
     }
 
     /**
@@ -71,16 +77,26 @@ public class Function implements DiffFunction {
      * @param lambda Lambda vector
      */
     public void computeValueAndDerivatives(double[] lambda) {        
+        if (empiricalCounts == null) {
+            computeEmpiricalCounts();
+        }
+        
+        // The empirical feature scores do not depend on lambda
         logli = new Loglikelihood(lambda.length);
         for (int i = 0; i < lambda.length; i++) {
+            logli.logli += lambda[i] * empiricalCounts[i];
+            logli.derivatives[i] += empiricalCounts[i];
             logli.logli -= ((lambda[i] * lambda[i]) * featureGen.params.invSigmaSquare) / 2;
             logli.derivatives[i] -= (lambda[i] * featureGen.params.invSigmaSquare);
         }
 
-        LogliComputer logliComp = new LogliComputer(lambda, featureGen, trainData, logli);
+        LogliComputer logliComp = new LogliComputer(lambda, featureGen, trainData, partialLoglis, workspaces);
         Scheduler sch = new Scheduler(logliComp, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
         try {
             sch.run();
+            LogliReducer reducer = new LogliReducer(logli, logliComp.getPartialLoglis());
+            sch = new Scheduler(reducer, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+            sch.run();
         } catch (Exception e) {
             System.out.println("Errors occur when training in parallel! " + e);
         }
@@ -92,4 +108,23 @@ public class Function implements DiffFunction {
         }
         logli.logli = -(logli.logli / n);
     }	
+
+    /**
+     * Compute the empirical feature counts of the training data.
+     * The counts are computed once and reused in all the iterations.
+     */
+    public void computeEmpiricalCounts() {
+        EmpiricalCounter counter = new EmpiricalCounter(featureGen, trainData);
+        Loglikelihood counts = new Loglikelihood(featureGen.getNumFeatures());
+        Scheduler sch = new Scheduler(counter, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+        try {
+            sch.run();
+            LogliReducer reducer = new LogliReducer(counts, counter.getPartialCounts());
+            sch = new Scheduler(reducer, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+            sch.run();
+        } catch (Exception e) {
+            System.out.println("Errors occur when counting features in parallel! " + e);
+        }
+        empiricalCounts = counts.derivatives;
+    }
 }
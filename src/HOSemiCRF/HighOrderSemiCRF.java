@@ -13,6 +13,8 @@ public class HighOrderSemiCRF {
 
     FeatureGenerator featureGen; // Feature generator
     double[] lambda; // Feature weight vector
+    long numPrunedStates; // Number of forward states pruned by the beam in the last Viterbi run
+    ArrayList<Workspace> workspaces; // Per-thread workspaces for decoding
 	
     /**
      * Construct and initialize a high-order semi-CRF from feature generator.
@@ -20,8 +22,9 @@ public class HighOrderSemiCRF {
      */
     public HighOrderSemiCRF(FeatureGenerator fgen) {
         featureGen = fgen;
-        lambda = new double[featureGen.featureMap.size()];
+        lambda = new double[featureGen.getNumFeatures()];
         Arrays.fill(lambda, 0.0);
+        workspaces = new ArrayList<Workspace>();
     }
 
     /**
@@ -39,17 +42,66 @@ public class HighOrderSemiCRF {
      * @param data Testing data
      */
     public void runViterbi(ArrayList data) throws Exception {
-        Viterbi tester = new Viterbi(featureGen, lambda, data);
+        Viterbi tester = new Viterbi(featureGen, lambda, data, workspaces);
         Scheduler sch = new Scheduler(tester, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
         sch.run();
+        numPrunedStates = tester.getNumPrunedStates();
+    }
+    
+    /**
+     * Return the number of forward states pruned by the beam in the last Viterbi run.
+     * @return Number of pruned states, 0 if the beam is not used
+     */
+    public long getNumPrunedStates() {
+        return numPrunedStates;
+    }
+    
+    /**
+     * Create a fixed-lag Viterbi decoder for a stream of tokens.
+     * @return The streaming decoder
+     */
+    public StreamingViterbi createStreamingViterbi() {
+        return new StreamingViterbi(featureGen, lambda);
+    }
+    
+    /**
+     * Run k-best Viterbi algorithm on testing data.
+     * The testing sequences are not changed.
+     * @param data Testing data
+     * @param k Number of best segmentations for each sequence
+     * @return List of the k best segmentations (best first) for each sequence
+     */
+    public ArrayList<ArrayList<Labeling>> runKBestViterbi(ArrayList data, int k) throws Exception {
+        KBestViterbi tester = new KBestViterbi(featureGen, lambda, data, workspaces, k);
+        Scheduler sch = new Scheduler(tester, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+        sch.run();
+        return tester.getKBestLists();
+    }
+
+    /**
+     * Run posterior decoding on testing data.
+     * The testing sequences are labeled by Viterbi or minimum Bayes risk decoding.
+     * @param data Testing data
+     * @param useMBR Use minimum Bayes risk decoding instead of Viterbi
+     * @return List of the posteriors of each sequence
+     */
+    public ArrayList<Posterior> runPosteriorDecoding(ArrayList data, boolean useMBR) throws Exception {
+        PosteriorDecoder tester = new PosteriorDecoder(featureGen, lambda, data, workspaces, useMBR);
+        Scheduler sch = new Scheduler(tester, featureGen.params.numthreads, Scheduler.DYNAMIC_NEXT_AVAILABLE);
+        sch.run();
+        return tester.getPosteriors();
     }
 	
     /**
      * Write the high-order semi-CRF to a file.
+     * With feature hashing, the number of hash bits and the sign hashing option are written first.
      * @param filename Name of the output file
      */
     public void write(String filename) throws Exception {
         PrintWriter out = new PrintWriter(new FileOutputStream(filename));
+        if (featureGen.hasher != null) {
+            out.println("hash " + featureGen.hasher.hashBits + " " + featureGen.hasher.useSignHash);
+        }
         out.println(lambda.length);
         for (int i = 0; i < lambda.length; i++) {
             out.println(lambda[i]);
@@ -59,14 +111,33 @@ public class HighOrderSemiCRF {
 
     /**
      * Read the high-order semi-CRF from a file.
+     * The feature hashing options of the file must match those of the feature generator.
      * @param filename Name of the input file
      */
     public void read(String filename) throws Exception {
         BufferedReader in = new BufferedReader(new FileReader(filename));
-        int featureNum = Integer.parseInt(in.readLine());
+        String line = in.readLine();
+        int hashBits = 0;
+        boolean useSignHash = false;
+        if (line.startsWith("hash ")) {
+            StringTokenizer toks = new StringTokenizer(line.substring(5));
+            hashBits = Integer.parseInt(toks.nextToken());
+            useSignHash = Boolean.parseBoolean(toks.nextToken());
+            line = in.readLine();
+        }
+        FeatureHasher hasher = featureGen.hasher;
+        if (hashBits != ((hasher != null) ? hasher.hashBits : 0) || useSignHash != (hasher != null && hasher.useSignHash)) {
+            in.close();
+            throw new Exception("The model was trained with hashBits = " + hashBits + " and useSignHash = " + useSignHash + ", set the same options.");
+        }
+        int featureNum = Integer.parseInt(line);
+        if (featureNum != featureGen.getNumFeatures()) {
+            in.close();
+            throw new Exception("The model has " + featureNum + " features instead of " + featureGen.getNumFeatures() + ".");
+        }
         lambda = new double[featureNum];
         for (int i = 0; i < featureNum; i++) {
-            String line = in.readLine();
+            line = in.readLine();
             lambda[i] = Double.parseDouble(line);
         }
         in.close();
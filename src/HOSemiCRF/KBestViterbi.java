@@ -0,0 +1,228 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Implementation of the k-best Viterbi algorithm
+ * The max scores of the Viterbi algorithm are computed first, then the k best
+ * segmentations are extracted lazily from the forward state lattice: the i-th best
+ * derivation of a lattice node is only computed when a successor node needs it.
+ * @author Nguyen Viet Cuong
+ */
+public class KBestViterbi extends Viterbi {
+
+    int k; // Number of best segmentations for each sequence
+    ArrayList<Labeling>[] kBestLists; // Map from sequence index to its k best segmentations
+
+    /**
+     * Derivation of a lattice node, i.e. a path from the start node to the node.
+     */
+    static class Derivation implements Comparable<Derivation> {
+        double score; // Score of the path
+        double edgeScore; // Score of the last edge of the path
+        int prevNode; // Lattice node at the other end of the last edge, -1 for the start node
+        int prevRank; // Rank of the path at the previous node
+
+        Derivation(double score, double edgeScore, int prevNode, int prevRank) {
+            this.score = score;
+            this.edgeScore = edgeScore;
+            this.prevNode = prevNode;
+            this.prevRank = prevRank;
+        }
+
+        public int compareTo(Derivation d) {
+            return Double.compare(d.score, score);
+        }
+    }
+
+    /**
+     * Construct a k-best Viterbi class.
+     * @param featureGen Feature generator
+     * @param lambda Lambda vector
+     * @param data Testing data
+     * @param workspaces List of workspaces, extended when there are more threads than workspaces
+     * @param k Number of best segmentations for each sequence
+     */
+    public KBestViterbi(FeatureGenerator featureGen, double[] lambda, ArrayList data, ArrayList<Workspace> workspaces, int k) {
+        super(featureGen, lambda, data, workspaces);
+        this.k = k;
+        kBestLists = new ArrayList[data.size()];
+    }
+
+    /**
+     * Compute the k best segmentations of a given sequence.
+     * The sequence itself is not changed.
+     * @param taskID Index of the sequence
+     * @return List of at most k segmentations, best first
+     */
+    public Object compute(int taskID) {
+        DataSequence seq = (DataSequence) data.get(taskID);
+        Workspace ws = threadWorkspace.get();
+        computeMaxScores(seq, ws);
+
+        Lattice lattice = new Lattice(seq, ws);
+        ArrayList<Labeling> res = new ArrayList<Labeling>();
+        for (int rank = 0; rank < k; rank++) {
+            Derivation der = lattice.getDerivation(lattice.finalNode, rank);
+            if (der == null) {
+                break;
+            }
+            res.add(lattice.getLabeling(der));
+        }
+        kBestLists[taskID] = res;
+        return res;
+    }
+
+    /**
+     * Return the k best segmentations of all the sequences.
+     * @return List of k-best lists in the order of the sequences
+     */
+    public ArrayList<ArrayList<Labeling>> getKBestLists() {
+        return new ArrayList<ArrayList<Labeling>>(Arrays.asList(kBestLists));
+    }
+
+    /**
+     * Lazy k-best extraction over the lattice of a sequence.
+     * Node row * numStates + i is the forward state i ending at position row - 1,
+     * node 0 is the start node and the final node joins all the states at the last position.
+     */
+    class Lattice {
+        DataSequence seq; // Data sequence
+        Workspace ws; // Workspace with the max scores and the potentials
+        int numStates; // Number of forward states
+        int finalNode; // Index of the final node
+        ArrayList<Derivation>[] kbest; // Map from node to its extracted derivations, best first
+        PriorityQueue<Derivation>[] candidates; // Map from node to its candidate derivations
+        int[] numExpanded; // Map from node to the number of derivations whose successors are candidates
+
+        Lattice(DataSequence seq, Workspace ws) {
+            this.seq = seq;
+            this.ws = ws;
+            numStates = featureGen.forwardStateMap.size();
+            finalNode = (seq.length() + BASE) * numStates;
+            kbest = new ArrayList[finalNode + 1];
+            candidates = new PriorityQueue[finalNode + 1];
+            numExpanded = new int[finalNode + 1];
+        }
+
+        /**
+         * Return a derivation of a node.
+         * The derivations needed from the previous nodes are extracted first with an explicit stack
+         * instead of recursion, so the depth does not grow with the number of segments.
+         * @param node Lattice node
+         * @param rank Rank of the derivation
+         * @return The derivation or null if the node has no more derivations
+         */
+        Derivation getDerivation(int node, int rank) {
+            ArrayList<int[]> stack = new ArrayList<int[]>();
+            stack.add(new int[] {node, rank});
+            while (!stack.isEmpty()) {
+                int[] top = stack.get(stack.size() - 1);
+                int n = top[0];
+                if (isDone(n, top[1])) {
+                    stack.remove(stack.size() - 1);
+                    continue;
+                }
+                ArrayList<Derivation> list = kbest[n];
+                if (numExpanded[n] < list.size()) {
+                    // Add the successor of the next derivation once the previous node has extracted it
+                    Derivation der = list.get(numExpanded[n]);
+                    if (der.prevNode >= 0) {
+                        if (!isDone(der.prevNode, der.prevRank + 1)) {
+                            stack.add(new int[] {der.prevNode, der.prevRank + 1});
+                            continue;
+                        }
+                        if (kbest[der.prevNode].size() > der.prevRank + 1) {
+                            Derivation next = kbest[der.prevNode].get(der.prevRank + 1);
+                            candidates[n].add(new Derivation(next.score + der.edgeScore, der.edgeScore, der.prevNode, der.prevRank + 1));
+                        }
+                    }
+                    numExpanded[n]++;
+                } else {
+                    list.add(candidates[n].poll());
+                }
+            }
+            return (kbest[node].size() > rank) ? kbest[node].get(rank) : null;
+        }
+
+        /**
+         * Check if a derivation of a node is extracted or the node has no more derivations.
+         * The node is initialized if needed.
+         * @param node Lattice node
+         * @param rank Rank of the derivation
+         * @return true if nothing is left to do for the derivation, false otherwise
+         */
+        boolean isDone(int node, int rank) {
+            if (kbest[node] == null) {
+                initialize(node);
+            }
+            if (kbest[node].size() > rank) {
+                return true;
+            }
+            return numExpanded[node] == kbest[node].size() && candidates[node].isEmpty();
+        }
+
+        /**
+         * Create the candidates of a node from the best derivations of its incoming edges.
+         * @param node Lattice node
+         */
+        void initialize(int node) {
+            CompiledLattice lattice = featureGen.lattice;
+            kbest[node] = new ArrayList<Derivation>();
+            candidates[node] = new PriorityQueue<Derivation>();
+            double[] maxScore = ws.logAlpha;
+            if (node == 0) {
+                kbest[node].add(new Derivation(0.0, 0.0, -1, -1));
+            } else if (node == finalNode) {
+                int lastRow = seq.length() * numStates;
+                for (int i = 0; i < numStates; i++) {
+                    if (maxScore[lastRow + i] != Double.NEGATIVE_INFINITY) {
+                        candidates[node].add(new Derivation(maxScore[lastRow + i], 0.0, lastRow + i, 0));
+                    }
+                }
+            } else if (node >= numStates) {
+                int j = node / numStates - BASE;
+                int i = node % numStates;
+                int y = featureGen.lastForwardStateLabel[i];
+                int maxmem = (y == -1) ? 0 : featureGen.maxMemory[y];
+                int transStart = lattice.forwardOffsets[i];
+                int transEnd = lattice.forwardOffsets[i + 1];
+                for (int d = 0; d < maxmem && j - d >= 0 && seq.isLabelAllowed(j - d, y); d++) {
+                    if (!seq.isBoundaryAllowed(j - d)) {
+                        continue;
+                    }
+                    int prevRow = (j + BASE - d - 1) * numStates;
+                    int potBase = ws.potentialIndex(j - d, d, 0);
+                    for (int t = transStart; t < transEnd; t++) {
+                        int prevNode = prevRow + lattice.forwardTransition1[t];
+                        if (maxScore[prevNode] != Double.NEGATIVE_INFINITY) {
+                            // The edges from the states kept by the beam have their potentials computed
+                            double edgeScore = ws.potential[potBase + lattice.forwardTransition2[t]];
+                            candidates[node].add(new Derivation(maxScore[prevNode] + edgeScore, edgeScore, prevNode, 0));
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Build the segmentation of a derivation of the final node.
+         * @param der Derivation of the final node
+         * @return The segmentation with its score
+         */
+        Labeling getLabeling(Derivation der) {
+            Labeling res = new Labeling(seq.length(), der.score);
+            int node = der.prevNode;
+            int rank = der.prevRank;
+            while (node >= numStates) {
+                Derivation curr = getDerivation(node, rank);
+                int segEnd = node / numStates - BASE;
+                int segStart = curr.prevNode / numStates;
+                res.setSegment(segStart, segEnd, featureGen.lastForwardStateLabel[node % numStates]);
+                node = curr.prevNode;
+                rank = curr.prevRank;
+            }
+            return res;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Packing of label patterns into long keys
+ * A pattern y(t)|y(t-1)|...|y(t-k) is stored as the number with the digits
+ * y(t)+1, y(t-1)+1, ..., y(t-k)+1 in base numLabels+1, y(t) being the least significant digit.
+ * The empty pattern is 0. Suffixes, proper prefixes and the last label of a pattern are
+ * then computed with integer arithmetic instead of string manipulation.
+ * @author Nguyen Viet Cuong
+ */
+public class LabelPattern {
+
+    int base; // Base of the packed patterns
+    long[] powers; // Map from k to base^k
+    int maxLength; // Maximum number of labels in a packed pattern
+
+    /**
+     * Construct the packing for a number of labels.
+     * @param numLabels Number of labels
+     */
+    public LabelPattern(int numLabels) {
+        base = numLabels + 1;
+        ArrayList<Long> pows = new ArrayList<Long>();
+        pows.add(1L);
+        while (pows.get(pows.size() - 1) <= Long.MAX_VALUE / base) {
+            pows.add(pows.get(pows.size() - 1) * base);
+        }
+        maxLength = pows.size() - 1;
+        powers = new long[pows.size()];
+        for (int k = 0; k < powers.length; k++) {
+            powers[k] = pows.get(k);
+        }
+    }
+
+    /**
+     * Return the pattern y|p.
+     * @param p Packed pattern
+     * @param y Label
+     * @return The packed pattern with y as its last label
+     */
+    public long extend(long p, int y) {
+        if (p >= powers[maxLength - 1]) {
+            throw new UnsupportedOperationException("Label pattern too long!\n");
+        }
+        return p * base + y + 1;
+    }
+
+    /**
+     * Return the last label y(t) of a pattern.
+     * @param p Packed pattern
+     * @return The last label, -1 for the empty pattern
+     */
+    public int getLastLabel(long p) {
+        return (int) (p % base) - 1;
+    }
+
+    /**
+     * Return the number of labels in a pattern.
+     * @param p Packed pattern
+     * @return Number of labels
+     */
+    public int length(long p) {
+        int res = 0;
+        while (res < maxLength && powers[res] <= p) {
+            res++;
+        }
+        return res;
+    }
+
+    /**
+     * Return the order of a pattern.
+     * @param p Packed pattern
+     * @return The order of the pattern
+     */
+    public int getOrder(long p) {
+        return length(p) - 1;
+    }
+
+    /**
+     * Return the suffix y(t)|...|y(t-len+1) of a pattern.
+     * @param p Packed pattern
+     * @param len Number of labels of the suffix
+     * @return The packed suffix
+     */
+    public long suffix(long p, int len) {
+        return (len >= powers.length) ? p : p % powers[len];
+    }
+
+    /**
+     * Return the pattern without its last label, i.e. its longest proper prefix.
+     * @param p Packed pattern
+     * @return The packed prefix
+     */
+    public long removeLastLabel(long p) {
+        return p / base;
+    }
+
+    /**
+     * Pack a pattern string.
+     * @param labelPat Pattern string y(t)|y(t-1)|...
+     * @return The packed pattern
+     */
+    public long parse(String labelPat) {
+        long res = 0;
+        int end = labelPat.length();
+        while (end > 0) {
+            int start = labelPat.lastIndexOf('|', end - 1) + 1;
+            res = extend(res, Integer.parseInt(labelPat.substring(start, end)));
+            end = start - 1;
+        }
+        return res;
+    }
+
+    /**
+     * Return the string of a packed pattern.
+     * @param p Packed pattern
+     * @return Pattern string y(t)|y(t-1)|...
+     */
+    public String toString(long p) {
+        StringBuilder sb = new StringBuilder();
+        while (p != 0) {
+            if (sb.length() > 0) {
+                sb.append('|');
+            }
+            sb.append(getLastLabel(p));
+            p = removeLastLabel(p);
+        }
+        return sb.toString();
+    }
+}
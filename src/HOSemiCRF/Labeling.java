@@ -0,0 +1,92 @@
+package HOSemiCRF;
+
+/**
+ * Class for a segmentation of a sequence with its score
+ * @author Nguyen Viet Cuong
+ */
+public class Labeling {
+
+    int[] labels; // Label array
+    int[] startPos; // Start of a segment
+    int[] endPos; // End of a segment
+    double score; // Score of the segmentation (in log scale)
+
+    /**
+     * Construct an empty labeling for a sequence of a given length.
+     * @param length Sequence length
+     * @param sc Score of the labeling
+     */
+    public Labeling(int length, double sc) {
+        labels = new int[length];
+        startPos = new int[length];
+        endPos = new int[length];
+        score = sc;
+    }
+
+    /**
+     * Return length of the labeled sequence.
+     * @return Length of the sequence
+     */
+    public int length() {
+        return labels.length;
+    }
+
+    /**
+     * Return label at a position.
+     * @param pos Input position
+     * @return Label at the input position
+     */
+    public int y(int pos) {
+        return labels[pos];
+    }
+
+    /**
+     * Return the score of the labeling.
+     * @return Score of the labeling
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Return the start position of the segment that includes a given position.
+     * @param pos Input position
+     * @return Start position of the segment that includes the input position
+     */
+    public int getSegmentStart(int pos) {
+        return startPos[pos];
+    }
+
+    /**
+     * Return the end position of the segment that includes a given position.
+     * @param pos Input position
+     * @return End position of the segment that includes the input position
+     */
+    public int getSegmentEnd(int pos) {
+        return endPos[pos];
+    }
+
+    /**
+     * Set the label of a segment.
+     * @param segStart Start position of the segment
+     * @param segEnd End position of the segment
+     * @param y Label of the segment
+     */
+    public void setSegment(int segStart, int segEnd, int y) {
+        for (int i = segStart; i <= segEnd; i++) {
+            labels[i] = y;
+            startPos[i] = segStart;
+            endPos[i] = segEnd;
+        }
+    }
+
+    /**
+     * Copy the labels into a data sequence.
+     * @param seq Data sequence of the same length
+     */
+    public void apply(DataSequence seq) {
+        for (int pos = 0; pos < labels.length; pos = endPos[pos] + 1) {
+            seq.setSegment(pos, endPos[pos], labels[pos]);
+        }
+    }
+}
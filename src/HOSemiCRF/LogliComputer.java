@@ -13,44 +13,73 @@ public class LogliComputer implements Schedulable {
     FeatureGenerator featureGen; // Feature generator
     ArrayList trainData; // List of training sequences
     double[] lambda; // Lambda vector
-    Loglikelihood logli; // Loglikelihood value and derivatives
+    ArrayList<Loglikelihood> partialLoglis; // Per-thread partial loglikelihoods (reused across iterations)
+    int numPartialLoglis; // Number of partial loglikelihoods assigned to the threads
+    ThreadLocal<Loglikelihood> threadLogli; // Partial loglikelihood of the current thread
+    ArrayList<Workspace> workspaces; // Per-thread workspaces (reused across iterations)
+    int numWorkspaces; // Number of workspaces assigned to the threads
+    ThreadLocal<Workspace> threadWorkspace; // Workspace of the current thread
     final int BASE = 1; // Base of the logAlpha array
+    final double MAX_SCALE_GAP = Math.log(Double.MAX_VALUE) / 2; // Largest gap between the log scaling factors across a segment in the scaled algorithms
     
     /**
      * Construct a loglikelihood computer.
+     * Each thread accumulates its results into its own partial loglikelihood from a list of buffers.
+     * The partial loglikelihoods are summed by class LogliReducer after all the tasks are done.
      * @param lambdaValues Lambda vector
      * @param fgen Feature generator
      * @param td List of training sequences
-     * @param loglh Initial loglikelihood and its derivatives (partially computed from class Function)
+     * @param partials List of partial loglikelihood buffers, extended when there are more threads than buffers
+     * @param wss List of workspaces, extended when there are more threads than workspaces
      */
-    public LogliComputer(double[] lambdaValues, FeatureGenerator fgen, ArrayList td, Loglikelihood loglh) {
+    public LogliComputer(double[] lambdaValues, FeatureGenerator fgen, ArrayList td, ArrayList<Loglikelihood> partials, ArrayList<Workspace> wss) {
         curID = -1;
         featureGen = fgen;
         trainData = td;
         lambda = lambdaValues;
-        logli = loglh;
+        partialLoglis = partials;
+        numPartialLoglis = 0;
+        threadLogli = new ThreadLocal<Loglikelihood>() {
+            @Override
+            protected Loglikelihood initialValue() {
+                return nextPartialLogli();
+            }
+        };
+        workspaces = wss;
+        numWorkspaces = 0;
+        threadWorkspace = new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue() {
+                return nextWorkspace();
+            }
+        };
     }
 
     /**
      * Compute the partition function and expected feature score (in log scale) for a given sequence.
+     * The empirical feature scores are added separately by class Function.
+     * The results are accumulated into the partial loglikelihood of the current thread.
      * @param taskID Index of the training sequence
-     * @return Partition function value and expected feature scores
+     * @return The partial loglikelihood of the current thread
      */
     public Object compute(int taskID) {
-        Loglikelihood res = new Loglikelihood(lambda.length);
+        Loglikelihood res = threadLogli.get();
+        Workspace ws = threadWorkspace.get();
         DataSequence seq = (DataSequence) trainData.get(taskID);
         
-        addFeatureScores(seq, res);
-        double[][] logAlpha = computeLogAlpha(seq);
-        double logZx = computeLogZx(seq, logAlpha);
-        double[][] logBeta = computeLogBeta(seq);
-        double[][][] marginal = computeMarginal(seq, logAlpha, logBeta, logZx);
-        double[] expectation = computeExpectation(seq, marginal);
-
-        for (int k = 0; k < lambda.length; k++) {
-            res.derivatives[k] -= expectation[k];
+        ws.ensureLength(seq.length());
+        featureGen.computePotential(seq, lambda, ws);
+        if (featureGen.params.useScaling && computeScaledForwardBackward(seq, ws)) {
+            double logZx = ws.logScaleAlpha[seq.length()];
+            addScaledExpectation(seq, logZx, ws, res);
+            res.logli -= logZx;
+        } else {
+            computeLogAlpha(seq, ws);
+            double logZx = computeLogZx(seq, ws);
+            computeLogBeta(seq, ws);
+            addExpectation(seq, logZx, ws, res);
+            res.logli -= logZx;
         }
-        res.logli -= logZx;
 
         return res;
     }
@@ -75,181 +104,377 @@ public class LogliComputer implements Schedulable {
     }
 
     /**
-     * Add the partition function and expected feature scores into the final loglikelihood and its derivatives.
-     * @param partialResult Partition function and expected feature scores
+     * Update partial result (for parallelization).
+     * Note that this method does nothing in this case since the results are accumulated per thread.
+     * @param partialResult Partial result
      */
-    public synchronized void update(Object partialResult) {
-        Loglikelihood res = (Loglikelihood) partialResult;
-        logli.logli += res.logli;
-        for (int i = 0; i < lambda.length; i++) {
-            logli.derivatives[i] += res.derivatives[i];
+    public void update(Object partialResult) {
+        // Do nothing
+    }
+    
+    /**
+     * Assign the next partial loglikelihood buffer to a thread and reset it.
+     * @return The partial loglikelihood
+     */
+    synchronized Loglikelihood nextPartialLogli() {
+        if (numPartialLoglis == partialLoglis.size()) {
+            partialLoglis.add(new Loglikelihood(lambda.length));
         }
+        Loglikelihood res = partialLoglis.get(numPartialLoglis++);
+        res.logli = 0;
+        Arrays.fill(res.derivatives, 0.0);
+        return res;
     }
     
     /**
-     * Add the empirical feature scores and the sequence probability.
-     * @param seq Training sequence
-     * @param res Partial loglikelihood to be updated after this method call
+     * Assign the next workspace to a thread.
+     * @return The workspace
      */
-    public void addFeatureScores(DataSequence seq, Loglikelihood res) {
-        int segStart, segEnd;
-        for (segStart = 0; segStart < seq.length(); segStart = segEnd + 1) {
-            segEnd = seq.getSegmentEnd(segStart);
-            
-            String labelPat = featureGen.generateLabelPattern(seq, segStart, segEnd);
-            int sID = featureGen.getBackwardStateIndex(labelPat);
-            for (int patID : featureGen.allSuffixes[sID]) {
-                ArrayList<Integer> feats = featureGen.getFeatures(seq, segStart, segEnd, patID);
-                for (int index : feats) {
-                    Feature feat = featureGen.featureList.get(index);
-                    res.derivatives[index] += feat.value;
-                    res.logli += lambda[index] * feat.value;
-                }
-            }
+    synchronized Workspace nextWorkspace() {
+        if (numWorkspaces == workspaces.size()) {
+            workspaces.add(new Workspace(featureGen));
         }
+        return workspaces.get(numWorkspaces++);
     }
-	
+    
+    /**
+     * Return the partial loglikelihoods used by the threads.
+     * @return List of partial loglikelihoods
+     */
+    public List<Loglikelihood> getPartialLoglis() {
+        return partialLoglis.subList(0, numPartialLoglis);
+    }
+    
     /**
      * Run the forward algorithm.
      * @param seq Training sequence
-     * @return Logarithms of the alpha variables
+     * @param ws Workspace with the segment potentials, to store the logarithms of the alpha variables
      */
-    public double[][] computeLogAlpha(DataSequence seq) {
-        double[][] logAlpha = new double[seq.length() + 1][featureGen.forwardStateMap.size()];
-        Arrays.fill(logAlpha[0], Double.NEGATIVE_INFINITY);
-        logAlpha[0][0] = 0.0;
+    public void computeLogAlpha(DataSequence seq, Workspace ws) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numStates = featureGen.forwardStateMap.size();
+        double[] logAlpha = ws.logAlpha;
+        double[] terms = ws.terms;
+        int[] runs = ws.resetRuns();
+        Arrays.fill(logAlpha, 0, numStates, Double.NEGATIVE_INFINITY);
+        logAlpha[0] = 0.0;
         for (int j = 0; j < seq.length(); j++) {
-            Arrays.fill(logAlpha[j + BASE], Double.NEGATIVE_INFINITY);
-            for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
+            int row = (j + BASE) * numStates;
+            seq.extendAllowedRuns(j, runs);
+            if (!seq.isBoundaryAllowed(j + 1)) {
+                Arrays.fill(logAlpha, row, row + numStates, Double.NEGATIVE_INFINITY);
+                continue;
+            }
+            for (int i = 0; i < numStates; i++) {
                 int y = featureGen.lastForwardStateLabel[i];
-                int maxmem = (y == -1) ? 0 : featureGen.maxMemory[y];
+                int maxmem = (y == -1) ? 0 : Math.min(featureGen.maxMemory[y], runs[y]);
                 
-                ArrayList<Integer> prevState1 = featureGen.forwardTransition1[i];
-                ArrayList<Integer> prevState2 = featureGen.forwardTransition2[i];
+                int transStart = lattice.forwardOffsets[i];
+                int transEnd = lattice.forwardOffsets[i + 1];
+                int n = 0;
                 for (int d = 0; d < maxmem && j - d >= 0; d++) {
-                    for (int k = 0; k < prevState1.size(); k++) {
-                        int pkID = prevState1.get(k);
-                        int pkyID = prevState2.get(k);
-                        double featuresScore = 0.0;
-                        for (Integer patID : featureGen.allSuffixes[pkyID]) {
-                            ArrayList<Integer> feats = featureGen.getFeatures(seq, j - d, j, patID);
-                            featuresScore += featureGen.computeFeatureScores(feats, lambda);
-                        }
-                        logAlpha[j + BASE][i] = Utility.logSumExp(logAlpha[j + BASE][i], logAlpha[j + BASE - d - 1][pkID] + featuresScore);
+                    if (!seq.isBoundaryAllowed(j - d)) {
+                        continue;
+                    }
+                    int prevRow = (j + BASE - d - 1) * numStates;
+                    int potBase = ws.potentialIndex(j - d, d, 0);
+                    for (int k = transStart; k < transEnd; k++) {
+                        int pkID = lattice.forwardTransition1[k];
+                        int pkyID = lattice.forwardTransition2[k];
+                        double featuresScore = ws.potential[potBase + pkyID];
+                        terms[n++] = logAlpha[prevRow + pkID] + featuresScore;
                     }
                 }
+                logAlpha[row + i] = Utility.logSumExp(terms, n);
             }
         }
-        return logAlpha;
     }
 	
     /**
      * Compute the logarithm of partition function from the alpha variables.
      * @param seq Training sequence
-     * @param logAlpha Logarithms of the alpha variables
+     * @param ws Workspace with the logarithms of the alpha variables
      * @return Logarithm of the partition function
      */
-    public double computeLogZx(DataSequence seq, double[][] logAlpha) {
-        double logZx = Double.NEGATIVE_INFINITY;
-        int l = seq.length();
-        for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
-            logZx = Utility.logSumExp(logZx, logAlpha[l][i]);
-        }
-        return logZx;
+    public double computeLogZx(DataSequence seq, Workspace ws) {
+        int numStates = featureGen.forwardStateMap.size();
+        int row = seq.length() * numStates;
+        System.arraycopy(ws.logAlpha, row, ws.terms, 0, numStates);
+        return Utility.logSumExp(ws.terms, numStates);
     }
     
     /**
      * Run the backward algorithm.
      * @param seq Training sequence
-     * @return Logarithms of the beta variables
+     * @param ws Workspace with the segment potentials, to store the logarithms of the beta variables
      */
-    public double[][] computeLogBeta(DataSequence seq) {
-        double[][] logBeta = new double[seq.length() + 1][featureGen.backwardStateMap.size()];
-        Arrays.fill(logBeta[seq.length()], 0.0);
+    public void computeLogBeta(DataSequence seq, Workspace ws) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numStates = featureGen.backwardStateMap.size();
+        double[] logBeta = ws.logBeta;
+        double[] terms = ws.terms;
+        int[] runs = ws.resetRuns();
+        int lastRow = seq.length() * numStates;
+        Arrays.fill(logBeta, lastRow, lastRow + numStates, 0.0);
         for (int j = seq.length() - 1; j > 0; j--) {
-            Arrays.fill(logBeta[j], Double.NEGATIVE_INFINITY);
-            for (int i = 0; i < featureGen.backwardStateMap.size(); i++) {
+            int row = j * numStates;
+            seq.extendAllowedRuns(j, runs);
+            if (!seq.isBoundaryAllowed(j)) {
+                Arrays.fill(logBeta, row, row + numStates, Double.NEGATIVE_INFINITY);
+                continue;
+            }
+            for (int i = 0; i < numStates; i++) {
+                int n = 0;
                 for (int y = 0; y < featureGen.params.numLabels; y++) {
-                    int skID = featureGen.backwardTransition[i][y];
+                    int skID = lattice.backwardTransition[i * lattice.numLabels + y];
                     if (skID != -1) {
-                        for (int d = 0; d < featureGen.maxMemory[y] && j + d < seq.length(); d++) {
-                            double featuresScore = 0.0;
-                            for (Integer patID : featureGen.allSuffixes[skID]) {
-                                ArrayList<Integer> feats = featureGen.getFeatures(seq, j, j+d, patID);
-                                featuresScore += featureGen.computeFeatureScores(feats, lambda);
+                        int maxmem = Math.min(featureGen.maxMemory[y], runs[y]);
+                        for (int d = 0; d < maxmem && j + d < seq.length(); d++) {
+                            if (!seq.isBoundaryAllowed(j + d + 1)) {
+                                continue;
                             }
-                            logBeta[j][i] = Utility.logSumExp(logBeta[j][i], logBeta[j + d + 1][skID] + featuresScore);
+                            double featuresScore = ws.potential[ws.potentialIndex(j, d, skID)];
+                            terms[n++] = logBeta[(j + d + 1) * numStates + skID] + featuresScore;
                         }
                     }
                 }
+                logBeta[row + i] = Utility.logSumExp(terms, n);
             }
         }
-        return logBeta;
     }
 
     /**
-     * Compute the marginals.
+     * Compute the marginals and subtract the feature expectations from the derivatives.
+     * Each marginal is added into the derivatives as soon as it is computed, so no marginal array is built.
      * @param seq Training sequence
-     * @param logAlpha Logarithms of the alpha variables
-     * @param logBeta Logarithms of the beta variables
      * @param logZx Logarithm of the partition function
-     * @return The array of marginals
+     * @param ws Workspace with the segment potentials and the logarithms of the alpha and beta variables
+     * @param res Partial loglikelihood to be updated after this method call
      */
-    public double[][][] computeMarginal(DataSequence seq, double[][] logAlpha, double[][] logBeta, double logZx) {
-        double[][][] marginal = new double[featureGen.patternMap.size()][seq.length()][];
+    public void addExpectation(DataSequence seq, double logZx, Workspace ws, Loglikelihood res) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numForward = featureGen.forwardStateMap.size();
+        int numBackward = featureGen.backwardStateMap.size();
         for (int zID = 0; zID < featureGen.patternMap.size(); zID++) {
             int y = featureGen.lastPatternLabel[zID];
             int maxmem = (y == -1) ? 0 : featureGen.maxMemory[y];
 			
             for (int segStart = 0; segStart < seq.length(); segStart++) {
                 int maxLength = Math.min(maxmem, seq.length() - segStart);
-                marginal[zID][segStart] = new double[maxLength];
+                int alphaRow = (BASE + segStart - 1) * numForward;
                 for (int d = 0; d < maxLength; d++) {
-                    marginal[zID][segStart][d] = Double.NEGATIVE_INFINITY;
+                    if (!featureGen.hasFeatures(seq, segStart, d, zID)) {
+                        continue;
+                    }
                     
-                    for (int i = 0; i < featureGen.patternTransition1[zID].size(); i++) {
-                        int piID = featureGen.patternTransition1[zID].get(i);
-                        int piyID = featureGen.patternTransition2[zID].get(i);
+                    int betaRow = (segStart + d + 1) * numBackward;
+                    int potBase = ws.potentialIndex(segStart, d, 0);
+                    int n = 0;
+                    for (int i = lattice.patternOffsets[zID]; i < lattice.patternOffsets[zID + 1]; i++) {
+                        int piID = lattice.patternTransition1[i];
+                        int piyID = lattice.patternTransition2[i];
                         
-                        double featuresScore = 0.0;
-                        for (Integer patID : featureGen.allSuffixes[piyID]) {
-                            ArrayList<Integer> feats = featureGen.getFeatures(seq, segStart, segStart+d, patID);
-                            featuresScore += featureGen.computeFeatureScores(feats, lambda);
-                        }
-                        marginal[zID][segStart][d] = Utility.logSumExp(marginal[zID][segStart][d], logAlpha[BASE + segStart - 1][piID] + logBeta[segStart + d + 1][piyID] + featuresScore);
+                        double featuresScore = ws.potential[potBase + piyID];
+                        ws.terms[n++] = ws.logAlpha[alphaRow + piID] + ws.logBeta[betaRow + piyID] + featuresScore;
                     }
+                    double marginal = Math.exp(Utility.logSumExp(ws.terms, n) - logZx);
                     
-                    marginal[zID][segStart][d] = Math.exp(marginal[zID][segStart][d] - logZx);
+                    featureGen.addFeatures(seq, segStart, d, zID, -marginal, res.derivatives);
                 }
             }
         }
-        return marginal;
     }
-	
+    
+    /**
+     * Run the forward and backward algorithms with scaled probabilities instead of log scale.
+     * The alpha (beta) variables of each position are normalized to sum to one and
+     * the logarithms of the scaling factors are accumulated in the workspace.
+     * This replaces most of the log and exp calls with multiplications.
+     * The scaled algorithms give up when the scaling factors across a segment differ by more than
+     * MAX_SCALE_GAP in log scale, since their ratio would then underflow or overflow.
+     * @param seq Training sequence
+     * @param ws Workspace with the segment potentials, to store the scaled alpha and beta variables
+     * @return false if an underflow or overflow is detected, in which case the log scale algorithms must be used
+     */
+    public boolean computeScaledForwardBackward(DataSequence seq, Workspace ws) {
+        ws.ensureScaling(seq.length());
+        double[] potential = ws.potential;
+        double[] expPotential = ws.expPotential;
+        int size = seq.length() * ws.maxSegment * ws.numBackwardStates;
+        for (int i = 0; i < size; i++) {
+            expPotential[i] = Math.exp(potential[i]);
+        }
+        return computeScaledAlpha(seq, ws) && computeScaledBeta(seq, ws);
+    }
+    
+    /**
+     * Run the forward algorithm with scaled probabilities.
+     * The scaled alpha variables are stored in the logAlpha array of the workspace.
+     * @param seq Training sequence
+     * @param ws Workspace with the exponentials of the segment potentials
+     * @return false if an underflow or overflow is detected
+     */
+    public boolean computeScaledAlpha(DataSequence seq, Workspace ws) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numStates = featureGen.forwardStateMap.size();
+        double[] alpha = ws.logAlpha;
+        double[] logScale = ws.logScaleAlpha;
+        double[] ratios = ws.scaleRatios;
+        int[] runs = ws.resetRuns();
+        Arrays.fill(alpha, 0, numStates, 0.0);
+        alpha[0] = 1.0;
+        logScale[0] = 0.0;
+        for (int j = 0; j < seq.length(); j++) {
+            int row = (j + BASE) * numStates;
+            seq.extendAllowedRuns(j, runs);
+            if (!seq.isBoundaryAllowed(j + 1)) {
+                Arrays.fill(alpha, row, row + numStates, 0.0);
+                logScale[j + BASE] = logScale[j];
+                continue;
+            }
+            for (int d = 0; d < featureGen.params.maxSegment && j - d >= 0; d++) {
+                double gap = logScale[j - d] - logScale[j];
+                if (Math.abs(gap) > MAX_SCALE_GAP) {
+                    return false;
+                }
+                ratios[d] = Math.exp(gap);
+            }
+            
+            double sum = 0.0;
+            for (int i = 0; i < numStates; i++) {
+                int y = featureGen.lastForwardStateLabel[i];
+                int maxmem = (y == -1) ? 0 : Math.min(featureGen.maxMemory[y], runs[y]);
+                
+                int transStart = lattice.forwardOffsets[i];
+                int transEnd = lattice.forwardOffsets[i + 1];
+                double value = 0.0;
+                for (int d = 0; d < maxmem && j - d >= 0; d++) {
+                    if (!seq.isBoundaryAllowed(j - d)) {
+                        continue;
+                    }
+                    int prevRow = (j + BASE - d - 1) * numStates;
+                    int potBase = ws.potentialIndex(j - d, d, 0);
+                    double segSum = 0.0;
+                    for (int k = transStart; k < transEnd; k++) {
+                        segSum += alpha[prevRow + lattice.forwardTransition1[k]] * ws.expPotential[potBase + lattice.forwardTransition2[k]];
+                    }
+                    value += segSum * ratios[d];
+                }
+                alpha[row + i] = value;
+                sum += value;
+            }
+            
+            if (!(sum > 0.0) || Double.isInfinite(sum)) {
+                return false;
+            }
+            for (int i = 0; i < numStates; i++) {
+                alpha[row + i] /= sum;
+            }
+            logScale[j + BASE] = logScale[j] + Math.log(sum);
+        }
+        return true;
+    }
+    
+    /**
+     * Run the backward algorithm with scaled probabilities.
+     * The scaled beta variables are stored in the logBeta array of the workspace.
+     * @param seq Training sequence
+     * @param ws Workspace with the exponentials of the segment potentials
+     * @return false if an underflow or overflow is detected
+     */
+    public boolean computeScaledBeta(DataSequence seq, Workspace ws) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numStates = featureGen.backwardStateMap.size();
+        double[] beta = ws.logBeta;
+        double[] logScale = ws.logScaleBeta;
+        double[] ratios = ws.scaleRatios;
+        int[] runs = ws.resetRuns();
+        int lastRow = seq.length() * numStates;
+        Arrays.fill(beta, lastRow, lastRow + numStates, 1.0);
+        logScale[seq.length()] = 0.0;
+        for (int j = seq.length() - 1; j > 0; j--) {
+            int row = j * numStates;
+            seq.extendAllowedRuns(j, runs);
+            if (!seq.isBoundaryAllowed(j)) {
+                Arrays.fill(beta, row, row + numStates, 0.0);
+                logScale[j] = logScale[j + 1];
+                continue;
+            }
+            for (int d = 0; d < featureGen.params.maxSegment && j + d < seq.length(); d++) {
+                double gap = logScale[j + d + 1] - logScale[j + 1];
+                if (Math.abs(gap) > MAX_SCALE_GAP) {
+                    return false;
+                }
+                ratios[d] = Math.exp(gap);
+            }
+            
+            double sum = 0.0;
+            for (int i = 0; i < numStates; i++) {
+                double value = 0.0;
+                for (int y = 0; y < featureGen.params.numLabels; y++) {
+                    int skID = lattice.backwardTransition[i * lattice.numLabels + y];
+                    if (skID != -1) {
+                        int maxmem = Math.min(featureGen.maxMemory[y], runs[y]);
+                        for (int d = 0; d < maxmem && j + d < seq.length(); d++) {
+                            if (!seq.isBoundaryAllowed(j + d + 1)) {
+                                continue;
+                            }
+                            value += beta[(j + d + 1) * numStates + skID] * ws.expPotential[ws.potentialIndex(j, d, skID)] * ratios[d];
+                        }
+                    }
+                }
+                beta[row + i] = value;
+                sum += value;
+            }
+            
+            if (!(sum > 0.0) || Double.isInfinite(sum)) {
+                return false;
+            }
+            for (int i = 0; i < numStates; i++) {
+                beta[row + i] /= sum;
+            }
+            logScale[j] = logScale[j + 1] + Math.log(sum);
+        }
+        return true;
+    }
+    
     /**
-     * Compute the feature expectations.
+     * Compute the marginals from the scaled alpha and beta variables and subtract the feature expectations from the derivatives.
      * @param seq Training sequence
-     * @param marginals The marginals
-     * @return The feature expectations
+     * @param logZx Logarithm of the partition function
+     * @param ws Workspace with the exponentials of the segment potentials and the scaled alpha and beta variables
+     * @param res Partial loglikelihood to be updated after this method call
      */
-    public double[] computeExpectation(DataSequence seq, double[][][] marginal) {
-        double[] expectation = new double[lambda.length];
-        Arrays.fill(expectation, 0.0);
+    public void addScaledExpectation(DataSequence seq, double logZx, Workspace ws, Loglikelihood res) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numForward = featureGen.forwardStateMap.size();
+        int numBackward = featureGen.backwardStateMap.size();
         for (int zID = 0; zID < featureGen.patternMap.size(); zID++) {
             int y = featureGen.lastPatternLabel[zID];
             int maxmem = (y == -1) ? 0 : featureGen.maxMemory[y];
 			
             for (int segStart = 0; segStart < seq.length(); segStart++) {
-                for (int segEnd = segStart; segEnd < seq.length() && segEnd - segStart < maxmem; segEnd++) {
-                    ArrayList<Integer> feats = featureGen.getFeatures(seq, segStart, segEnd, zID);
-                    for (int index : feats) {
-                        Feature feat = featureGen.featureList.get(index);
-                        expectation[index] += feat.value * marginal[zID][segStart][segEnd-segStart];
+                int maxLength = Math.min(maxmem, seq.length() - segStart);
+                int alphaRow = (BASE + segStart - 1) * numForward;
+                for (int d = 0; d < maxLength; d++) {
+                    if (!featureGen.hasFeatures(seq, segStart, d, zID)) {
+                        continue;
                     }
+                    
+                    int betaRow = (segStart + d + 1) * numBackward;
+                    int potBase = ws.potentialIndex(segStart, d, 0);
+                    double marginal = 0.0;
+                    for (int i = lattice.patternOffsets[zID]; i < lattice.patternOffsets[zID + 1]; i++) {
+                        int piID = lattice.patternTransition1[i];
+                        int piyID = lattice.patternTransition2[i];
+                        marginal += ws.logAlpha[alphaRow + piID] * ws.logBeta[betaRow + piyID] * ws.expPotential[potBase + piyID];
+                    }
+                    marginal *= Math.exp(ws.logScaleAlpha[segStart] + ws.logScaleBeta[segStart + d + 1] - logZx);
+                    
+                    featureGen.addFeatures(seq, segStart, d, zID, -marginal, res.derivatives);
                 }
             }
         }
-        return expectation;
     }
     
     /**
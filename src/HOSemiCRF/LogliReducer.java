@@ -0,0 +1,75 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Parallel.*;
+
+/**
+ * Parallel reduction of the per-thread partial loglikelihoods
+ * @author Nguyen Viet Cuong
+ */
+public class LogliReducer implements Schedulable {
+
+    int curID; // Current task ID (for parallelization)
+    Loglikelihood logli; // Final loglikelihood value and derivatives
+    List<Loglikelihood> partials; // Partial loglikelihoods to be added
+    final int BLOCK_SIZE = 65536; // Number of derivatives in each task
+
+    /**
+     * Construct a reducer for the partial loglikelihoods.
+     * The loglikelihood values are added here; the derivatives are added in blocks by the tasks.
+     * @param loglh Final loglikelihood to be updated
+     * @param pts List of partial loglikelihoods
+     */
+    public LogliReducer(Loglikelihood loglh, List<Loglikelihood> pts) {
+        curID = -1;
+        logli = loglh;
+        partials = pts;
+        for (Loglikelihood res : partials) {
+            logli.logli += res.logli;
+        }
+    }
+
+    /**
+     * Add the partial derivatives in a block of features.
+     * @param taskID Index of the block
+     * @return null
+     */
+    public Object compute(int taskID) {
+        int start = taskID * BLOCK_SIZE;
+        int end = Math.min(start + BLOCK_SIZE, logli.derivatives.length);
+        for (Loglikelihood res : partials) {
+            for (int i = start; i < end; i++) {
+                logli.derivatives[i] += res.derivatives[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return total number of tasks (for parallelization).
+     * @return Number of blocks of features
+     */
+    public int getNumTasks() {
+        return (logli.derivatives.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Return the next task ID (for parallelization).
+     * @return The next block ID
+     */
+    public synchronized int fetchCurrTaskID() {
+        if (curID < getNumTasks()) {
+            curID++;
+        }
+        return curID;
+    }
+
+    /**
+     * Update partial result (for parallelization).
+     * Note that this method does nothing in this case.
+     * @param partialResult Partial result
+     */
+    public void update(Object partialResult) {
+        // Do nothing
+    }
+}
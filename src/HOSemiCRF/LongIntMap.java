@@ -0,0 +1,144 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Open-addressing hash map from long keys to non-negative integers
+ * Entries are kept in insertion order and can be iterated by their positions.
+ * @author Nguyen Viet Cuong
+ */
+public class LongIntMap {
+
+    long[] keys; // Keys in insertion order
+    int[] values; // Values in insertion order
+    int[] table; // Hash table: slot -> (entry position + 1), 0 if the slot is empty
+    int size; // Number of entries
+    
+    /**
+     * Construct an empty map.
+     */
+    public LongIntMap() {
+        this(16);
+    }
+    
+    /**
+     * Construct an empty map with an expected number of entries.
+     * @param expectedSize Expected number of entries
+     */
+    public LongIntMap(int expectedSize) {
+        int capacity = Math.max(expectedSize, 4);
+        keys = new long[capacity];
+        values = new int[capacity];
+        table = new int[StringIntMap.tableSize(capacity)];
+        size = 0;
+    }
+
+    /**
+     * Return the number of entries.
+     * @return Number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the value of a key.
+     * @param key Input key
+     * @return Value of the key, -1 if the key is not in the map
+     */
+    public int get(long key) {
+        int mask = table.length - 1;
+        for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = table[slot] - 1;
+            if (keys[pos] == key) {
+                return values[pos];
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Check if a key is in the map.
+     * @param key Input key
+     * @return true if the key is in the map, false otherwise
+     */
+    public boolean containsKey(long key) {
+        return get(key) != -1;
+    }
+
+    /**
+     * Put a key and its value into the map.
+     * @param key Input key
+     * @param value Non-negative value of the key
+     */
+    public void put(long key, int value) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = table[slot] - 1;
+            if (keys[pos] == key) {
+                values[pos] = value;
+                return;
+            }
+        }
+        
+        if (size == keys.length) {
+            int capacity = 2 * keys.length;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        
+        if (size * 2 > table.length) {
+            rehash(2 * table.length);
+        } else {
+            table[slot] = size;
+        }
+    }
+    
+    /**
+     * Return the key at a position in insertion order.
+     * @param pos Position of the entry
+     * @return Key of the entry
+     */
+    public long getKey(int pos) {
+        return keys[pos];
+    }
+    
+    /**
+     * Return the value at a position in insertion order.
+     * @param pos Position of the entry
+     * @return Value of the entry
+     */
+    public int getValue(int pos) {
+        return values[pos];
+    }
+    
+    /**
+     * Rebuild the hash table with a new size.
+     * @param newSize New size of the hash table (a power of 2)
+     */
+    void rehash(int newSize) {
+        table = new int[newSize];
+        int mask = newSize - 1;
+        for (int pos = 0; pos < size; pos++) {
+            int slot = hash(keys[pos]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = pos + 1;
+        }
+    }
+    
+    /**
+     * Return the spread hash code of a long key.
+     * @param key Input key
+     * @return Hash code
+     */
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
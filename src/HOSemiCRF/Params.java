@@ -15,6 +15,16 @@ public class Params {
     int maxSegment = -1; // Maximum segment length
     double invSigmaSquare = 1.0; // Inverse of Sigma Squared
     double epsForConvergence = 0.001; // Convergence Precision
+    int beamWidth = 0; // Maximum number of forward states kept at each position by Viterbi (0 for no limit)
+    double beamGap = 0.0; // Maximum score gap to the best forward state at each position kept by Viterbi (0 for no limit)
+    int streamLag = 50; // Maximum number of positions decoded but not returned by the streaming Viterbi (0 for no limit)
+    int streamLookahead = 5; // Number of tokens after a segment used by its observations in the streaming Viterbi
+    int streamMargin = 5; // Number of tokens before a segment used by its observations in the streaming Viterbi
+    boolean useScaling = false; // Run forward-backward with scaled probabilities instead of log scale
+    int minFeatureCount = 1; // Minimum number of occurrences of a feature in the training data
+    HashMap<String, Integer> featureTypeMinCounts = new HashMap<String, Integer>(); // Map from feature type class name to its minimum number of occurrences
+    int hashBits = 0; // Number of bits of the hashed feature indices (0 to keep the feature dictionaries)
+    boolean useSignHash = false; // Hash the sign of the feature values as well (only with hashBits > 0)
 
     /**
      * Construct a parameters object.
@@ -40,6 +50,65 @@ public class Params {
         if ((value = options.getProperty("epsForConvergence")) != null) {
             epsForConvergence = Double.parseDouble(value);
         }
+        if ((value = options.getProperty("beamWidth")) != null) {
+            beamWidth = Integer.parseInt(value);
+        }
+        if ((value = options.getProperty("beamGap")) != null) {
+            beamGap = Double.parseDouble(value);
+        }
+        if ((value = options.getProperty("streamLag")) != null) {
+            streamLag = Integer.parseInt(value);
+        }
+        if ((value = options.getProperty("streamLookahead")) != null) {
+            streamLookahead = Integer.parseInt(value);
+        }
+        if ((value = options.getProperty("streamMargin")) != null) {
+            streamMargin = Integer.parseInt(value);
+        }
+        if ((value = options.getProperty("useScaling")) != null) {
+            useScaling = Boolean.parseBoolean(value);
+        }
+        if ((value = options.getProperty("minFeatureCount")) != null) {
+            minFeatureCount = Integer.parseInt(value);
+        }
+        for (String name : options.stringPropertyNames()) {
+            if (name.startsWith("minFeatureCount.")) {
+                featureTypeMinCounts.put(name.substring("minFeatureCount.".length()), Integer.parseInt(options.getProperty(name)));
+            }
+        }
+        if ((value = options.getProperty("hashBits")) != null) {
+            hashBits = Integer.parseInt(value);
+        }
+        if ((value = options.getProperty("useSignHash")) != null) {
+            useSignHash = Boolean.parseBoolean(value);
+        }
         numLabels = nl;
     }
+    
+    /**
+     * Check if Viterbi prunes the forward states with a beam.
+     * @return true if the beam width or the beam gap is set
+     */
+    public boolean useBeam() {
+        return beamWidth > 0 || beamGap > 0;
+    }
+    
+    /**
+     * Check if the features are hashed instead of stored in dictionaries.
+     * @return true if the number of hash bits is set
+     */
+    public boolean useHashing() {
+        return hashBits > 0;
+    }
+    
+    /**
+     * Return the minimum number of occurrences of the features of a feature type.
+     * The count set with minFeatureCount.ClassName overrides the global minFeatureCount.
+     * @param ft Feature type
+     * @return Minimum number of occurrences
+     */
+    public int getMinFeatureCount(FeatureType ft) {
+        Integer count = featureTypeMinCounts.get(ft.getClass().getSimpleName());
+        return (count != null) ? count : minFeatureCount;
+    }
 }
@@ -0,0 +1,104 @@
+package HOSemiCRF;
+
+/**
+ * Class for the posterior marginals of a sequence and its decoded segmentation
+ * @author Nguyen Viet Cuong
+ */
+public class Posterior {
+
+    int length; // Sequence length
+    int maxSegment; // Maximum segment length
+    int numLabels; // Number of labels
+    double logZx; // Logarithm of the partition function
+    double[] segmentMarginals; // [segStart, d, y] -> Probability that the segment has label y
+    double[] labelMarginals; // [pos, y] -> Probability that the position has label y
+    Labeling labeling; // Decoded segmentation
+
+    /**
+     * Construct empty posteriors for a sequence.
+     * @param length Sequence length
+     * @param maxSegment Maximum segment length
+     * @param numLabels Number of labels
+     */
+    public Posterior(int length, int maxSegment, int numLabels) {
+        this.length = length;
+        this.maxSegment = maxSegment;
+        this.numLabels = numLabels;
+        segmentMarginals = new double[length * maxSegment * numLabels];
+        labelMarginals = new double[length * numLabels];
+    }
+
+    /**
+     * Return the index of a segment and a label in the segment marginals.
+     * @param segStart Start position of the segment
+     * @param d Segment length minus one
+     * @param y Label
+     * @return Index in the segment marginals
+     */
+    int segmentIndex(int segStart, int d, int y) {
+        return (segStart * maxSegment + d) * numLabels + y;
+    }
+
+    /**
+     * Return the probability that a subsequence is a segment with a given label.
+     * @param segStart Start position of the subsequence
+     * @param segEnd End position of the subsequence
+     * @param y Label
+     * @return The segment marginal
+     */
+    public double getSegmentMarginal(int segStart, int segEnd, int y) {
+        if (segEnd - segStart >= maxSegment) {
+            return 0.0;
+        }
+        return segmentMarginals[segmentIndex(segStart, segEnd - segStart, y)];
+    }
+
+    /**
+     * Return the probability that a position has a given label.
+     * @param pos Input position
+     * @param y Label
+     * @return The label marginal
+     */
+    public double getLabelMarginal(int pos, int y) {
+        return labelMarginals[pos * numLabels + y];
+    }
+
+    /**
+     * Return the largest label marginal at a position.
+     * @param pos Input position
+     * @return The max marginal
+     */
+    public double getMaxMarginal(int pos) {
+        double res = 0.0;
+        for (int y = 0; y < numLabels; y++) {
+            res = Math.max(res, labelMarginals[pos * numLabels + y]);
+        }
+        return res;
+    }
+
+    /**
+     * Return the confidence of the decoded segment that includes a given position,
+     * i.e. the probability of the segment with its decoded label.
+     * @param pos Input position
+     * @return The segment confidence
+     */
+    public double getConfidence(int pos) {
+        return getSegmentMarginal(labeling.getSegmentStart(pos), labeling.getSegmentEnd(pos), labeling.y(pos));
+    }
+
+    /**
+     * Return the logarithm of the partition function.
+     * @return Logarithm of the partition function
+     */
+    public double getLogZx() {
+        return logZx;
+    }
+
+    /**
+     * Return the decoded segmentation.
+     * @return The decoded segmentation
+     */
+    public Labeling getLabeling() {
+        return labeling;
+    }
+}
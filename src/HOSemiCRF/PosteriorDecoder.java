@@ -0,0 +1,194 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Decoder computing the posterior marginals of the segments with the forward-backward algorithm
+ * The sequences are labeled by Viterbi or by minimum Bayes risk decoding, which maximizes
+ * the expected number of correctly labeled positions.
+ * @author Nguyen Viet Cuong
+ */
+public class PosteriorDecoder extends Viterbi {
+
+    boolean useMBR; // Use minimum Bayes risk decoding instead of Viterbi
+    LogliComputer forwardBackward; // Forward-backward algorithm
+    int[][] statesByLabel; // Map from label to the forward states ending with it
+    int maxTerms; // Maximum number of terms in the marginal of a segment
+    Posterior[] posteriors; // Map from sequence index to its posteriors
+
+    /**
+     * Construct a posterior decoder.
+     * @param featureGen Feature generator
+     * @param lambda Lambda vector
+     * @param data Testing data
+     * @param workspaces List of workspaces, extended when there are more threads than workspaces
+     * @param useMBR Use minimum Bayes risk decoding instead of Viterbi
+     */
+    public PosteriorDecoder(FeatureGenerator featureGen, double[] lambda, ArrayList data, ArrayList<Workspace> workspaces, boolean useMBR) {
+        super(featureGen, lambda, data, workspaces);
+        this.useMBR = useMBR;
+        forwardBackward = new LogliComputer(lambda, featureGen, data, new ArrayList<Loglikelihood>(), workspaces);
+        posteriors = new Posterior[data.size()];
+
+        int numLabels = featureGen.params.numLabels;
+        int[] count = new int[numLabels];
+        for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
+            if (featureGen.lastForwardStateLabel[i] != -1) {
+                count[featureGen.lastForwardStateLabel[i]]++;
+            }
+        }
+        statesByLabel = new int[numLabels][];
+        for (int y = 0; y < numLabels; y++) {
+            statesByLabel[y] = new int[count[y]];
+            count[y] = 0;
+        }
+        for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
+            int y = featureGen.lastForwardStateLabel[i];
+            if (y != -1) {
+                statesByLabel[y][count[y]++] = i;
+            }
+        }
+        for (int y = 0; y < numLabels; y++) {
+            int numTerms = 0;
+            for (int i : statesByLabel[y]) {
+                numTerms += featureGen.lattice.numForwardTransitions(i);
+            }
+            maxTerms = Math.max(maxTerms, numTerms);
+        }
+    }
+
+    /**
+     * Compute the posteriors of a given sequence and label it.
+     * @param taskID Index of the sequence
+     * @return The posteriors of the sequence
+     */
+    public Object compute(int taskID) {
+        DataSequence seq = (DataSequence) data.get(taskID);
+        Workspace ws = threadWorkspace.get();
+        ws.ensureTrace(seq.length());
+        featureGen.computePotential(seq, featureGen.getAllObsIDs(seq), lambda, ws);
+
+        Posterior res = new Posterior(seq.length(), featureGen.params.maxSegment, featureGen.params.numLabels);
+        forwardBackward.computeLogAlpha(seq, ws);
+        res.logZx = forwardBackward.computeLogZx(seq, ws);
+        if (res.logZx != Double.NEGATIVE_INFINITY) {
+            forwardBackward.computeLogBeta(seq, ws);
+            computeMarginals(seq, ws, res);
+            if (useMBR) {
+                res.labeling = decodeMBR(seq, res);
+            }
+        }
+        if (res.labeling == null) {
+            // Viterbi decoding, also used when no segmentation has a positive probability
+            computeExactMaxScores(seq, ws);
+            res.labeling = traceBack(seq, ws);
+        }
+        res.labeling.apply(seq);
+
+        posteriors[taskID] = res;
+        return res;
+    }
+
+    /**
+     * Compute the segment and label marginals from the alpha and beta variables.
+     * No feature expectation is computed.
+     * @param seq Data sequence
+     * @param ws Workspace with the segment potentials and the logarithms of the alpha and beta variables
+     * @param res Posteriors to be filled
+     */
+    public void computeMarginals(DataSequence seq, Workspace ws, Posterior res) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numForward = featureGen.forwardStateMap.size();
+        int numBackward = featureGen.backwardStateMap.size();
+        int numLabels = featureGen.params.numLabels;
+        double[] terms = (ws.terms.length >= maxTerms) ? ws.terms : new double[maxTerms];
+        int[] runs = ws.resetRuns();
+        for (int segStart = seq.length() - 1; segStart >= 0; segStart--) {
+            seq.extendAllowedRuns(segStart, runs);
+            if (!seq.isBoundaryAllowed(segStart)) {
+                continue;
+            }
+            int maxLength = Math.min(featureGen.params.maxSegment, seq.length() - segStart);
+            int alphaRow = (BASE + segStart - 1) * numForward;
+            for (int d = 0; d < maxLength; d++) {
+                if (!seq.isBoundaryAllowed(segStart + d + 1)) {
+                    continue;
+                }
+                int betaRow = (segStart + d + 1) * numBackward;
+                int potBase = ws.potentialIndex(segStart, d, 0);
+                for (int y = 0; y < numLabels; y++) {
+                    if (d >= featureGen.maxMemory[y] || d >= runs[y]) {
+                        continue;
+                    }
+                    int n = 0;
+                    for (int i : statesByLabel[y]) {
+                        int transStart = lattice.forwardOffsets[i];
+                        int transEnd = lattice.forwardOffsets[i + 1];
+                        for (int k = transStart; k < transEnd; k++) {
+                            int pkyID = lattice.forwardTransition2[k];
+                            terms[n++] = ws.logAlpha[alphaRow + lattice.forwardTransition1[k]] + ws.potential[potBase + pkyID] + ws.logBeta[betaRow + pkyID];
+                        }
+                    }
+                    double marginal = Math.exp(Utility.logSumExp(terms, n) - res.logZx);
+                    res.segmentMarginals[res.segmentIndex(segStart, d, y)] = marginal;
+                    for (int pos = segStart; pos <= segStart + d; pos++) {
+                        res.labelMarginals[pos * numLabels + y] += marginal;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the segmentation maximizing the sum of the label marginals of its positions.
+     * Only the segments allowed by the constraints of the sequence are considered. Adjacent segments
+     * may have the same label, so the best gain of the positions before a segment boundary does not
+     * depend on the label of the last segment.
+     * @param seq Data sequence
+     * @param post Posteriors of the sequence
+     * @return The segmentation, its score is the expected number of correctly labeled positions;
+     *         null if there is no such segmentation
+     */
+    public Labeling decodeMBR(DataSequence seq, Posterior post) {
+        int numLabels = featureGen.params.numLabels;
+        double[] gain = new double[seq.length() + 1]; // [pos] -> Best gain of the positions before pos
+        int[] prevPos = new int[seq.length() + 1]; // [pos] -> Start of the last segment before pos
+        int[] prevLabel = new int[seq.length() + 1]; // [pos] -> Label of the last segment before pos
+        Arrays.fill(gain, Double.NEGATIVE_INFINITY);
+        gain[0] = 0.0;
+        for (int segStart = 0; segStart < seq.length(); segStart++) {
+            if (gain[segStart] == Double.NEGATIVE_INFINITY || !seq.isBoundaryAllowed(segStart)) {
+                continue;
+            }
+            for (int y = 0; y < numLabels; y++) {
+                double segGain = gain[segStart];
+                for (int d = 0; d < featureGen.maxMemory[y] && segStart + d < seq.length() && seq.isLabelAllowed(segStart + d, y); d++) {
+                    segGain += post.getLabelMarginal(segStart + d, y);
+                    int next = segStart + d + 1;
+                    if (seq.isBoundaryAllowed(next) && gain[next] < segGain) {
+                        gain[next] = segGain;
+                        prevPos[next] = segStart;
+                        prevLabel[next] = y;
+                    }
+                }
+            }
+        }
+
+        if (gain[seq.length()] == Double.NEGATIVE_INFINITY) {
+            return null;
+        }
+        Labeling res = new Labeling(seq.length(), gain[seq.length()]);
+        for (int pos = seq.length(); pos > 0; pos = prevPos[pos]) {
+            res.setSegment(prevPos[pos], pos - 1, prevLabel[pos]);
+        }
+        return res;
+    }
+
+    /**
+     * Return the posteriors of all the sequences.
+     * @return List of posteriors in the order of the sequences
+     */
+    public ArrayList<Posterior> getPosteriors() {
+        return new ArrayList<Posterior>(Arrays.asList(posteriors));
+    }
+}
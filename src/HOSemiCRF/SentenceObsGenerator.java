@@ -27,35 +27,75 @@ public class SentenceObsGenerator implements Schedulable {
 
     /**
      * Compute the observations for all the subsequences in a given sequence.
+     * With feature hashing, the features are hashed from the observation codes when they are needed,
+     * so they are not compiled.
      * @param taskID Index of the training sequence
      * @return The updated sequence
      */
     public Object compute(int taskID) {
         DataSequence seq = (DataSequence) trainData.get(taskID);
-        seq.observationMap = new int[seq.length()][][];
+        computeObservations(seq);
+        if (featGen.hasher == null) {
+            compileFeatures(seq);
+        }
+        return seq;
+    }
+    
+    /**
+     * Compute the observation IDs for all the subsequences in a given sequence.
+     * Observations that are not in the observation map are dropped.
+     * The observations of the token-decomposable feature types are composed from per-token observations.
+     * @param seq Data sequence
+     */
+    public void computeObservations(DataSequence seq) {
+        seq.observationMap = featGen.getAllObsIDs(seq);
+    }
+    
+    /**
+     * Compile the feature IDs for all the subsequences and patterns in a given sequence.
+     * The IDs are stored in flat arrays so that the training iterations do not need any lookup.
+     * The features of a subsequence are bucketed by pattern in one sweep over the observation rows.
+     * Only the subsequences that fit in the sequence are indexed.
+     * @param seq Data sequence with its observations computed
+     */
+    public void compileFeatures(DataSequence seq) {
+        int numPatterns = featGen.patternMap.size();
+        seq.numPatterns = numPatterns;
+        seq.segmentOffsets = new int[seq.length() + 1];
+        for (int segStart = 0; segStart < seq.length(); segStart++) {
+            seq.segmentOffsets[segStart + 1] = seq.segmentOffsets[segStart] + seq.observationMap[segStart].length;
+        }
+        seq.featureOffsets = new int[seq.segmentOffsets[seq.length()] * numPatterns + 1];
         
+        // Count the features of each subsequence and pattern
         for (int segStart = 0; segStart < seq.length(); segStart++) {
-            int maxLength = Math.min(featGen.params.maxSegment, seq.length() - segStart);
-            seq.observationMap[segStart] = new int[maxLength][];
-            for (int segEnd = segStart; segEnd - segStart < maxLength; segEnd++) {
-                ArrayList<Integer> obsIndices = new ArrayList<Integer>();
-                ArrayList<String> obs = featGen.generateObs(seq, segStart, segEnd);
-                for (String o : obs) {
-                    Integer oID = featGen.getObsIndex(o);
-                    if (oID != null) {
-                        obsIndices.add(oID);
+            for (int d = 0; d < seq.observationMap[segStart].length; d++) {
+                int base = seq.getFeatureIndex(segStart, segStart + d, 0);
+                for (int obsID : seq.observationMap[segStart][d]) {
+                    for (int i = featGen.obsRowOffsets[obsID]; i < featGen.obsRowOffsets[obsID + 1]; i++) {
+                        seq.featureOffsets[base + featGen.obsRowPatterns[i] + 1]++;
                     }
                 }
-                
-                int d = segEnd-segStart;
-                seq.observationMap[segStart][d] = new int[obsIndices.size()];
-                for (int i = 0; i < obsIndices.size(); i++) {
-                    seq.observationMap[segStart][d][i] = obsIndices.get(i);
+            }
+        }
+        for (int index = 1; index < seq.featureOffsets.length; index++) {
+            seq.featureOffsets[index] += seq.featureOffsets[index - 1];
+        }
+        
+        // Fill the feature IDs
+        seq.featureIDs = new int[seq.featureOffsets[seq.featureOffsets.length - 1]];
+        int[] next = new int[numPatterns];
+        for (int segStart = 0; segStart < seq.length(); segStart++) {
+            for (int d = 0; d < seq.observationMap[segStart].length; d++) {
+                int base = seq.getFeatureIndex(segStart, segStart + d, 0);
+                System.arraycopy(seq.featureOffsets, base, next, 0, numPatterns);
+                for (int obsID : seq.observationMap[segStart][d]) {
+                    for (int i = featGen.obsRowOffsets[obsID]; i < featGen.obsRowOffsets[obsID + 1]; i++) {
+                        seq.featureIDs[next[featGen.obsRowPatterns[i]]++] = featGen.obsRowFeatures[i];
+                    }
                 }
             }
         }
-		
-        return seq;
     }
 
     /**
@@ -0,0 +1,348 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Fixed-lag Viterbi algorithm for a stream of tokens
+ * The tokens are added one at a time and the labels of a prefix are returned as soon as
+ * all the surviving paths agree on it. If they do not agree within streamLag positions,
+ * the prefix of the current best path is committed. Only a window of the tokens and
+ * the max scores after the last committed position are kept.
+ * @author Nguyen Viet Cuong
+ */
+public class StreamingViterbi {
+
+    FeatureGenerator featureGen; // Feature generator
+    double[] lambda; // Lambda vector
+    int numStates; // Number of forward states
+    int maxSegment; // Maximum segment length
+    int lag; // Maximum number of positions decoded but not returned (0 for no limit)
+    int lookahead; // Number of tokens after a segment needed to compute its observations
+    int margin; // Number of tokens before a segment needed to compute its observations
+
+    ArrayList<Object> tokens; // Window of the tokens
+    DataSequence window; // Data sequence of the window of the tokens, null if the tokens changed since it was built
+    ArrayList<int[][]> tokenObs; // Per-token observation IDs of the decoded positions of the window (see FeatureGenerator.getTokenObsIDs)
+    int tokenOffset; // Stream position of the first token in the window
+    int numTokens; // Number of tokens added to the stream
+    int frontierRow; // Row of the last committed node, all the positions before it are returned
+    int decodedRows; // Last row with computed max scores
+    ArrayList<double[]> maxScores; // Max scores of the rows from frontierRow to decodedRows
+    ArrayList<int[]> tracePos; // Backpointers to the rows of the previous nodes, from frontierRow
+    ArrayList<int[]> traceState; // Backpointers to the states of the previous nodes, from frontierRow
+    ArrayList<int[]> marks; // Marks of the nodes of the rows from frontierRow, used to merge the paths
+    int stamp; // Mark of the nodes in the current search for the common node
+    int[] rowCounts; // Number of marked nodes of each row from frontierRow
+    double[] patScores; // Total feature score of each pattern
+    double[][] potential; // [d, sID] -> Potential of the segments ending at the current position
+    int[][] parts; // Scratch buffer for composing the observation IDs of a segment
+    final int BASE = 1; // Base of the rows
+
+    /**
+     * Construct a streaming Viterbi class.
+     * @param featureGen Feature generator
+     * @param lambda Lambda vector
+     */
+    public StreamingViterbi(FeatureGenerator featureGen, double[] lambda) {
+        this.featureGen = featureGen;
+        this.lambda = lambda;
+        numStates = featureGen.forwardStateMap.size();
+        maxSegment = featureGen.params.maxSegment;
+        lag = featureGen.params.streamLag;
+        lookahead = featureGen.params.streamLookahead;
+        margin = featureGen.params.streamMargin;
+        patScores = new double[featureGen.patternMap.size()];
+        potential = new double[maxSegment][featureGen.backwardStateMap.size()];
+        parts = new int[2 * featureGen.featureTypes.size() * maxSegment][];
+        rowCounts = new int[16];
+        reset();
+    }
+
+    /**
+     * Start a new stream.
+     */
+    public void reset() {
+        tokens = new ArrayList<Object>();
+        window = null;
+        tokenObs = new ArrayList<int[][]>();
+        tokenOffset = 0;
+        numTokens = 0;
+        frontierRow = 0;
+        decodedRows = 0;
+        maxScores = new ArrayList<double[]>();
+        tracePos = new ArrayList<int[]>();
+        traceState = new ArrayList<int[]>();
+        marks = new ArrayList<int[]>();
+        stamp = 0;
+
+        double[] start = new double[numStates];
+        Arrays.fill(start, Double.NEGATIVE_INFINITY);
+        start[0] = 0.0;
+        maxScores.add(start);
+        tracePos.add(null);
+        traceState.add(null);
+        marks.add(new int[numStates]);
+    }
+
+    /**
+     * Add a token to the stream.
+     * @param token The next token
+     * @return Labels of the positions that became final, in stream order (possibly empty)
+     */
+    public int[] add(Object token) {
+        tokens.add(token);
+        window = null;
+        numTokens++;
+        while (decodedRows + lookahead < numTokens) {
+            decodeRow();
+        }
+
+        ArrayList<Integer> res = new ArrayList<Integer>();
+        if (lag > 0 && decodedRows - frontierRow >= lag) {
+            int[] best = getBestPathNode(decodedRows - lag + 1);
+            if (best != null) {
+                commit(best[0], best[1], res);
+            }
+        }
+        int[] common = getCommonNode();
+        if (common != null && common[0] > frontierRow) {
+            commit(common[0], common[1], res);
+        }
+        return toArray(res);
+    }
+
+    /**
+     * End the stream and start a new one.
+     * An exception is thrown if the model allows no segmentation of the stream.
+     * @return Labels of all the remaining positions of the stream
+     */
+    public int[] finish() {
+        while (decodedRows < numTokens) {
+            decodeRow();
+        }
+        ArrayList<Integer> res = new ArrayList<Integer>();
+        if (decodedRows > frontierRow) {
+            int[] best = getBestPathNode(decodedRows);
+            if (best == null) {
+                reset();
+                throw new UnsupportedOperationException("No segmentation of the stream is allowed by the model!\n");
+            }
+            commit(best[0], best[1], res);
+        }
+        reset();
+        return toArray(res);
+    }
+
+    /**
+     * Compute the max scores of the next row, i.e. of the segments ending at the next position.
+     * The per-token observation IDs of the new position are computed once and reused by all the segments containing it.
+     * A potential is only computed when the last label of the backward state can have a segment of its length.
+     */
+    void decodeRow() {
+        CompiledLattice lattice = featureGen.lattice;
+        int row = decodedRows + 1;
+        int segEnd = row - BASE;
+        if (window == null) {
+            window = new DataSequence(new int[tokens.size()], tokens.toArray(), null);
+        }
+        tokenObs.add(featureGen.getTokenObsIDs(window, segEnd - tokenOffset));
+        int maxLength = Math.min(maxSegment, row - frontierRow);
+        for (int d = 0; d < maxLength; d++) {
+            int[] obsIDs = featureGen.composeObsIDs(window, segEnd - d - tokenOffset, segEnd - tokenOffset, tokenObs, parts);
+            featureGen.computePatternScores(obsIDs, lambda, patScores);
+            for (int sID = 0; sID < potential[d].length; sID++) {
+                int y = featureGen.lastBackwardStateLabel[sID];
+                if (y != -1 && d < featureGen.maxMemory[y]) {
+                    potential[d][sID] = featureGen.computeStatePotential(sID, patScores);
+                }
+            }
+        }
+
+        double[] maxScore = new double[numStates];
+        int[] prevPos = new int[numStates];
+        int[] prevState = new int[numStates];
+        Arrays.fill(maxScore, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i < numStates; i++) {
+            int y = featureGen.lastForwardStateLabel[i];
+            int maxmem = (y == -1) ? 0 : featureGen.maxMemory[y];
+            int transStart = lattice.forwardOffsets[i];
+            int transEnd = lattice.forwardOffsets[i + 1];
+            for (int d = 0; d < maxmem && d < maxLength; d++) {
+                double[] prevScore = maxScores.get(row - d - 1 - frontierRow);
+                for (int k = transStart; k < transEnd; k++) {
+                    int pkID = lattice.forwardTransition1[k];
+                    double score = potential[d][lattice.forwardTransition2[k]] + prevScore[pkID];
+                    if (maxScore[i] < score) {
+                        maxScore[i] = score;
+                        prevPos[i] = row - d - 1;
+                        prevState[i] = pkID;
+                    }
+                }
+            }
+        }
+        maxScores.add(maxScore);
+        tracePos.add(prevPos);
+        traceState.add(prevState);
+        marks.add(new int[numStates]);
+        decodedRows = row;
+    }
+
+    /**
+     * Return the node of the current best path at the first segment boundary from a given row.
+     * @param minRow Minimum row of the node
+     * @return The row and the state of the node, null if no state of the last row is reachable
+     */
+    int[] getBestPathNode(int minRow) {
+        double[] lastScore = maxScores.get(decodedRows - frontierRow);
+        double max = Double.NEGATIVE_INFINITY;
+        int state = -1;
+        for (int i = 0; i < numStates; i++) {
+            if (max < lastScore[i]) {
+                max = lastScore[i];
+                state = i;
+            }
+        }
+        if (state == -1) {
+            return null;
+        }
+        int row = decodedRows;
+        while (row > frontierRow) {
+            int prevRow = tracePos.get(row - frontierRow)[state];
+            if (prevRow < minRow) {
+                break;
+            }
+            state = traceState.get(row - frontierRow)[state];
+            row = prevRow;
+        }
+        return new int[] {row, state};
+    }
+
+    /**
+     * Return the latest node shared by the paths of all the nodes that can still be extended.
+     * The paths are followed back together from the latest rows and the search stops as soon as they merge.
+     * The nodes on the paths are marked in per-row arrays, so each node is visited at most once.
+     * @return The row and the state of the node, null if there are no such nodes
+     */
+    int[] getCommonNode() {
+        stamp++;
+        int numRows = decodedRows - frontierRow + 1;
+        if (rowCounts.length < numRows) {
+            rowCounts = new int[2 * numRows];
+        }
+        Arrays.fill(rowCounts, 0, numRows, 0);
+        int numNodes = 0;
+        for (int row = Math.max(frontierRow + 1, decodedRows - maxSegment + 1); row <= decodedRows; row++) {
+            double[] score = maxScores.get(row - frontierRow);
+            int[] mark = marks.get(row - frontierRow);
+            for (int i = 0; i < numStates; i++) {
+                if (score[i] != Double.NEGATIVE_INFINITY) {
+                    mark[i] = stamp;
+                    rowCounts[row - frontierRow]++;
+                    numNodes++;
+                }
+            }
+        }
+
+        // Replace the nodes of the latest row by their previous nodes until one node is left
+        for (int row = decodedRows; row > frontierRow; row--) {
+            if (rowCounts[row - frontierRow] == 0) {
+                continue;
+            }
+            int[] mark = marks.get(row - frontierRow);
+            for (int i = 0; i < numStates; i++) {
+                if (mark[i] != stamp) {
+                    continue;
+                }
+                if (numNodes == 1) {
+                    return new int[] {row, i};
+                }
+                int prevRow = tracePos.get(row - frontierRow)[i];
+                int prevState = traceState.get(row - frontierRow)[i];
+                numNodes--;
+                int[] prevMark = marks.get(prevRow - frontierRow);
+                if (prevMark[prevState] != stamp) {
+                    prevMark[prevState] = stamp;
+                    rowCounts[prevRow - frontierRow]++;
+                    numNodes++;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Commit a node: output the labels of its path and remove the nodes whose paths do not go through it.
+     * @param row Row of the node
+     * @param state State of the node
+     * @param res List to append the labels of the positions before the node
+     */
+    void commit(int row, int state, ArrayList<Integer> res) {
+        // Remove the nodes that do not go through the committed node
+        for (int r = Math.max(frontierRow + 1, decodedRows - maxSegment + 1); r <= decodedRows; r++) {
+            double[] score = maxScores.get(r - frontierRow);
+            for (int i = 0; i < numStates; i++) {
+                if (score[i] == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                int pr = r, ps = i;
+                while (pr > row) {
+                    int prevRow = tracePos.get(pr - frontierRow)[ps];
+                    ps = traceState.get(pr - frontierRow)[ps];
+                    pr = prevRow;
+                }
+                if (pr != row || ps != state) {
+                    score[i] = Double.NEGATIVE_INFINITY;
+                }
+            }
+        }
+
+        // Output the labels from the frontier to the committed node
+        int[] labels = new int[row - frontierRow];
+        int r = row, s = state;
+        while (r > frontierRow) {
+            int prevRow = tracePos.get(r - frontierRow)[s];
+            for (int pos = prevRow; pos < r; pos++) {
+                labels[pos - frontierRow] = featureGen.lastForwardStateLabel[s];
+            }
+            s = traceState.get(r - frontierRow)[s];
+            r = prevRow;
+        }
+        for (int y : labels) {
+            res.add(y);
+        }
+
+        // Move the frontier and drop the rows and the tokens that are no longer needed
+        double[] frontierScore = maxScores.get(row - frontierRow);
+        for (int i = 0; i < numStates; i++) {
+            if (i != state) {
+                frontierScore[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        maxScores.subList(0, row - frontierRow).clear();
+        tracePos.subList(0, row - frontierRow).clear();
+        traceState.subList(0, row - frontierRow).clear();
+        marks.subList(0, row - frontierRow).clear();
+        frontierRow = row;
+
+        int firstToken = Math.max(tokenOffset, Math.max(frontierRow, decodedRows + 1 - maxSegment) - margin);
+        if (firstToken > tokenOffset) {
+            tokens.subList(0, firstToken - tokenOffset).clear();
+            tokenObs.subList(0, firstToken - tokenOffset).clear();
+            window = null;
+        }
+        tokenOffset = firstToken;
+    }
+
+    /**
+     * Convert a list of labels to an array.
+     * @param labels List of labels
+     * @return Array of labels
+     */
+    int[] toArray(ArrayList<Integer> labels) {
+        int[] res = new int[labels.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = labels.get(i);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,305 @@
+package HOSemiCRF;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Open-addressing hash map from strings to non-negative integers
+ * Entries are kept in insertion order and can be iterated by their positions.
+ * The keys are not stored as String objects: their UTF-8 bytes are appended to one shared byte slab
+ * and the key of an entry is the range offsets[pos] to offsets[pos + 1] - 1 of the slab.
+ * Keys can be looked up from any character sequence or from UTF-8 bytes without creating a String.
+ * @author Nguyen Viet Cuong
+ */
+public class StringIntMap {
+
+    static ThreadLocal<byte[]> buffer; // Buffer of each thread for the UTF-8 bytes of the looked up keys
+    byte[] slab; // UTF-8 bytes of the keys in insertion order
+    int[] offsets; // Map from position to the start of its key in slab, offsets[size] is the used size of slab
+    int[] values; // Values in insertion order
+    int[] hashes; // Hash codes of the keys in insertion order
+    int[] table; // Hash table: slot -> (entry position + 1), 0 if the slot is empty
+    int size; // Number of entries
+
+    static {
+        buffer = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[64];
+            }
+        };
+    }
+
+    /**
+     * Construct an empty map.
+     */
+    public StringIntMap() {
+        this(16);
+    }
+
+    /**
+     * Construct an empty map with an expected number of entries.
+     * @param expectedSize Expected number of entries
+     */
+    public StringIntMap(int expectedSize) {
+        int capacity = Math.max(expectedSize, 4);
+        slab = new byte[16 * capacity];
+        offsets = new int[capacity + 1];
+        values = new int[capacity];
+        hashes = new int[capacity];
+        table = new int[tableSize(capacity)];
+        size = 0;
+    }
+
+    /**
+     * Return the number of entries.
+     * @return Number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the value of a key.
+     * @param key Input key
+     * @return Value of the key, -1 if the key is not in the map
+     */
+    public int get(CharSequence key) {
+        int length = encode(key);
+        return get(buffer.get(), 0, length);
+    }
+
+    /**
+     * Return the value of a key given by its UTF-8 bytes.
+     * @param bytes Array with the UTF-8 bytes of the key
+     * @param offset Start of the key in the array
+     * @param length Number of bytes of the key
+     * @return Value of the key, -1 if the key is not in the map
+     */
+    public int get(byte[] bytes, int offset, int length) {
+        int h = hash(bytes, offset, length);
+        int mask = table.length - 1;
+        for (int slot = h & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = table[slot] - 1;
+            if (hashes[pos] == h && keyEquals(pos, bytes, offset, length)) {
+                return values[pos];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the value of the key at a position of another map.
+     * @param map Other map
+     * @param pos Position of the entry in the other map
+     * @return Value of the key, -1 if the key is not in the map
+     */
+    public int get(StringIntMap map, int pos) {
+        return get(map.slab, map.offsets[pos], map.offsets[pos + 1] - map.offsets[pos]);
+    }
+
+    /**
+     * Check if a key is in the map.
+     * @param key Input key
+     * @return true if the key is in the map, false otherwise
+     */
+    public boolean containsKey(CharSequence key) {
+        return get(key) != -1;
+    }
+
+    /**
+     * Put a key and its value into the map.
+     * @param key Input key
+     * @param value Non-negative value of the key
+     */
+    public void put(CharSequence key, int value) {
+        int length = encode(key);
+        put(buffer.get(), 0, length, value);
+    }
+
+    /**
+     * Put the key at a position of another map and a value into the map.
+     * @param map Other map
+     * @param pos Position of the entry in the other map
+     * @param value Non-negative value of the key
+     */
+    public void put(StringIntMap map, int pos, int value) {
+        put(map.slab, map.offsets[pos], map.offsets[pos + 1] - map.offsets[pos], value);
+    }
+
+    /**
+     * Put a key given by its UTF-8 bytes and its value into the map.
+     * @param bytes Array with the UTF-8 bytes of the key
+     * @param offset Start of the key in the array
+     * @param length Number of bytes of the key
+     * @param value Non-negative value of the key
+     */
+    public void put(byte[] bytes, int offset, int length, int value) {
+        int h = hash(bytes, offset, length);
+        int mask = table.length - 1;
+        int slot = h & mask;
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int pos = table[slot] - 1;
+            if (hashes[pos] == h && keyEquals(pos, bytes, offset, length)) {
+                values[pos] = value;
+                return;
+            }
+        }
+
+        if (size == values.length) {
+            int capacity = 2 * values.length;
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+            values = Arrays.copyOf(values, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        int start = offsets[size];
+        if ((long) start + length > slab.length) {
+            long newLength = Math.max(2L * slab.length, (long) start + length);
+            if (newLength > Integer.MAX_VALUE - 8) {
+                throw new UnsupportedOperationException("String pool too large!\n");
+            }
+            slab = Arrays.copyOf(slab, (int) newLength);
+        }
+        System.arraycopy(bytes, offset, slab, start, length);
+        offsets[size + 1] = start + length;
+        values[size] = value;
+        hashes[size] = h;
+        size++;
+
+        if (size * 2 > table.length) {
+            rehash(2 * table.length);
+        } else {
+            table[slot] = size;
+        }
+    }
+
+    /**
+     * Return the key at a position in insertion order.
+     * @param pos Position of the entry
+     * @return Key of the entry
+     */
+    public String getKey(int pos) {
+        return new String(slab, offsets[pos], offsets[pos + 1] - offsets[pos], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return the value at a position in insertion order.
+     * @param pos Position of the entry
+     * @return Value of the entry
+     */
+    public int getValue(int pos) {
+        return values[pos];
+    }
+
+    /**
+     * Return the number of bytes used by the keys.
+     * @return Size of the UTF-8 keys
+     */
+    public int keyBytes() {
+        return offsets[size];
+    }
+
+    /**
+     * Check if the key at a position is equal to a sequence of bytes.
+     * @param pos Position of the entry
+     * @param bytes Array with the bytes
+     * @param offset Start of the bytes in the array
+     * @param length Number of bytes
+     * @return true if the key has the same bytes, false otherwise
+     */
+    boolean keyEquals(int pos, byte[] bytes, int offset, int length) {
+        int start = offsets[pos];
+        if (offsets[pos + 1] - start != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (slab[start + i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the hash table with a new size.
+     * @param newSize New size of the hash table (a power of 2)
+     */
+    void rehash(int newSize) {
+        table = new int[newSize];
+        int mask = newSize - 1;
+        for (int pos = 0; pos < size; pos++) {
+            int slot = hashes[pos] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = pos + 1;
+        }
+    }
+
+    /**
+     * Return the smallest power of 2 that can hold a number of entries at load factor 1/2.
+     * @param n Number of entries
+     * @return Size of the hash table
+     */
+    static int tableSize(int n) {
+        int res = 8;
+        while (res < 2 * n) {
+            res <<= 1;
+        }
+        return res;
+    }
+
+    /**
+     * Encode a character sequence in UTF-8 into the buffer of the current thread.
+     * Unpaired surrogates are replaced with '?' as in String.getBytes.
+     * @param key Input character sequence
+     * @return Number of bytes written to the buffer
+     */
+    static int encode(CharSequence key) {
+        int n = key.length();
+        byte[] buf = buffer.get();
+        if (buf.length < 3 * n) {
+            buf = new byte[3 * n];
+            buffer.set(buf);
+        }
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                buf[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[length++] = (byte) (0xC0 | (c >> 6));
+                buf[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(key.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, key.charAt(++i));
+                buf[length++] = (byte) (0xF0 | (cp >> 18));
+                buf[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[length++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[length++] = (byte) '?';
+            } else {
+                buf[length++] = (byte) (0xE0 | (c >> 12));
+                buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Return the spread hash code of a sequence of bytes.
+     * @param bytes Array with the bytes
+     * @param offset Start of the bytes in the array
+     * @param length Number of bytes
+     * @return Hash code
+     */
+    static int hash(byte[] bytes, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,175 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton over the label patterns and the forward and backward states
+ * The nodes form a trie of the patterns read from the oldest to the most recent label, so the
+ * children of a pattern p are the patterns y|p. The failure link of a node is its longest proper
+ * suffix in the trie, and the transition from node p with label y is the longest suffix of y|p
+ * in the trie. Every longest suffix lookup then takes constant time instead of probing a map
+ * with all the suffixes of a pattern.
+ * @author Nguyen Viet Cuong
+ */
+public class SuffixAutomaton {
+
+    int numLabels; // Number of labels
+    LongIntMap nodeMap; // Map from packed pattern to node
+    long[] nodeKeys; // Map from node to its packed pattern, shorter patterns first
+    int[] forwardID; // Map from node to its forward state ID, -1 if it is not a forward state
+    int[] backwardID; // Map from node to its backward state ID, -1 if it is not a backward state
+    int[] patternID; // Map from node to its pattern ID, -1 if it is not a pattern
+    int[] failure; // Map from node to its longest proper suffix node
+    int[] next; // [node, y] -> Node of the longest suffix of y|p in the trie
+    int[] forwardOutput; // Map from node to its longest suffix that is a forward state, -1 if none
+    int[] backwardOutput; // Map from node to its longest suffix that is a backward state, -1 if none
+    int[] patternOutput; // Map from node to its longest suffix that is a pattern, -1 if none
+
+    /**
+     * Build the automaton of a feature generator.
+     * @param featureGen Feature generator with its pattern and state maps
+     */
+    public SuffixAutomaton(FeatureGenerator featureGen) {
+        LabelPattern labelPattern = featureGen.labelPattern;
+        numLabels = featureGen.params.numLabels;
+        createNodes(featureGen);
+        int numNodes = nodeKeys.length;
+
+        forwardID = new int[numNodes];
+        backwardID = new int[numNodes];
+        patternID = new int[numNodes];
+        Arrays.fill(forwardID, -1);
+        Arrays.fill(backwardID, -1);
+        Arrays.fill(patternID, -1);
+        setIDs(featureGen.forwardStateMap, forwardID);
+        setIDs(featureGen.backwardStateMap, backwardID);
+        setIDs(featureGen.patternMap, patternID);
+
+        // Nodes are sorted by length, so the failure links of the parents are known
+        failure = new int[numNodes];
+        next = new int[numNodes * numLabels];
+        for (int node = 0; node < numNodes; node++) {
+            for (int y = 0; y < numLabels; y++) {
+                int child = nodeMap.get(labelPattern.extend(nodeKeys[node], y));
+                int fallback = (node == 0) ? 0 : next[failure[node] * numLabels + y];
+                if (child == -1) {
+                    next[node * numLabels + y] = fallback;
+                } else {
+                    next[node * numLabels + y] = child;
+                    failure[child] = fallback;
+                }
+            }
+        }
+
+        forwardOutput = createOutput(forwardID);
+        backwardOutput = createOutput(backwardID);
+        patternOutput = createOutput(patternID);
+    }
+
+    /**
+     * Create the nodes from the patterns and the states, closed under removing the last label.
+     * @param featureGen Feature generator with its pattern and state maps
+     */
+    void createNodes(FeatureGenerator featureGen) {
+        LabelPattern labelPattern = featureGen.labelPattern;
+        LongIntMap keys = new LongIntMap();
+        keys.put(0L, 0);
+        LongIntMap[] maps = {featureGen.forwardStateMap, featureGen.backwardStateMap, featureGen.patternMap};
+        for (LongIntMap map : maps) {
+            for (int pos = 0; pos < map.size(); pos++) {
+                for (long p = map.getKey(pos); p != 0 && !keys.containsKey(p); p = labelPattern.removeLastLabel(p)) {
+                    keys.put(p, keys.size());
+                }
+            }
+        }
+
+        // Bucket the nodes by length
+        ArrayList<ArrayList<Long>> buckets = new ArrayList<ArrayList<Long>>();
+        for (int pos = 0; pos < keys.size(); pos++) {
+            long p = keys.getKey(pos);
+            int len = labelPattern.length(p);
+            while (buckets.size() <= len) {
+                buckets.add(new ArrayList<Long>());
+            }
+            buckets.get(len).add(p);
+        }
+        nodeMap = new LongIntMap(keys.size());
+        nodeKeys = new long[keys.size()];
+        for (ArrayList<Long> bucket : buckets) {
+            for (long p : bucket) {
+                nodeKeys[nodeMap.size()] = p;
+                nodeMap.put(p, nodeMap.size());
+            }
+        }
+    }
+
+    /**
+     * Set the IDs of the nodes from a map.
+     * @param map Map from packed patterns to IDs
+     * @param ids Map from node to ID to be filled
+     */
+    void setIDs(LongIntMap map, int[] ids) {
+        for (int pos = 0; pos < map.size(); pos++) {
+            ids[nodeMap.get(map.getKey(pos))] = map.getValue(pos);
+        }
+    }
+
+    /**
+     * Create the output links of a node set: the longest suffix of each node in the set.
+     * @param ids Map from node to ID, -1 for the nodes not in the set
+     * @return Map from node to its output node, -1 if none
+     */
+    int[] createOutput(int[] ids) {
+        int[] output = new int[nodeKeys.length];
+        for (int node = 0; node < nodeKeys.length; node++) {
+            if (ids[node] != -1) {
+                output[node] = node;
+            } else {
+                output[node] = (node == 0) ? -1 : output[failure[node]];
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Return the node of a packed pattern.
+     * @param p Packed pattern
+     * @return Node of the pattern, -1 if there is no such node
+     */
+    public int getNode(long p) {
+        return nodeMap.get(p);
+    }
+
+    /**
+     * Return the ID of the longest forward state that is a suffix of y|p.
+     * @param node Node of the pattern p
+     * @param y Label
+     * @return ID of the forward state
+     */
+    public int getLongestForwardSuffix(int node, int y) {
+        return forwardID[forwardOutput[next[node * numLabels + y]]];
+    }
+
+    /**
+     * Return the ID of the longest backward state that is a suffix of y|p.
+     * @param node Node of the pattern p
+     * @param y Label
+     * @return ID of the backward state
+     */
+    public int getLongestBackwardSuffix(int node, int y) {
+        return backwardID[backwardOutput[next[node * numLabels + y]]];
+    }
+
+    /**
+     * Return the IDs of all the patterns that are suffixes of a node, longest first.
+     * @param node Node of the pattern
+     * @return List of pattern IDs
+     */
+    public ArrayList<Integer> getPatternSuffixes(int node) {
+        ArrayList<Integer> res = new ArrayList<Integer>();
+        for (int n = patternOutput[node]; n > 0; n = patternOutput[failure[n]]) {
+            res.add(patternID[n]);
+        }
+        return res;
+    }
+}
@@ -27,64 +27,27 @@ public class Utility {
     }
     
     /**
-     * Generate all proper prefixes of a label pattern.
-     * @param labelPat Label pattern
-     * @return List of proper prefixes
+     * Return ln(exp(a[0]) + ... + exp(a[n-1])) for the first n elements of an array.
+     * The maximum is found in a first pass and the exponentials are summed in a second pass,
+     * so only one logarithm is needed for all the terms.
+     * @param a Array of real numbers
+     * @param n Number of elements to be used
+     * @return ln(exp(a[0]) + ... + exp(a[n-1]))
      */
-    public static ArrayList<String> generateProperPrefixes(String labelPat) {
-        String pats = new String(labelPat);
-        ArrayList<String> res = new ArrayList<String>();
-        while (pats.contains("|")) {
-            pats = pats.substring(pats.indexOf('|') + 1);
-            if (pats.contains("|")) {
-                res.add(pats);
+    public static double logSumExp(double[] a, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            if (a[i] > max) {
+                max = a[i];
             }
         }
-        return res;
-    }
-
-    /**
-     * Generate all suffixes of a label pattern.
-     * @param labelPat Label pattern
-     * @return List of suffixes
-     */
-    public static ArrayList<String> generateSuffixes(String labelPat) {
-        String pats = new String(labelPat);
-        ArrayList<String> res = new ArrayList<String>();
-        res.add(pats);
-        while (pats.contains("|")) {
-            pats = pats.substring(0, pats.lastIndexOf("|"));
-            res.add(pats);
+        if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY) {
+            return max;
         }
-        return res;
-    }
-
-    /**
-     * Return the last label in a label pattern.
-     * @param labelPat Label pattern
-     * @return The last label in the pattern
-     */
-    public static String getLastLabel(String labelPat) {
-        String pats = new String(labelPat);
-        if (pats.contains("|")) {
-            return pats.substring(0, pats.indexOf("|"));
-        } else {
-            return pats;
-        }
-    }   
-
-    /**
-     * Return the order of a label pattern.
-     * @param labelPat Label pattern
-     * @return The order of the pattern
-     */
-    public static int getOrder(String labelPat) {
-        int res = 0;
-        String pats = new String(labelPat);
-        while (pats.contains("|")) {
-            pats = pats.substring(pats.indexOf('|') + 1);
-            res++;
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += Math.exp(a[i] - max);
         }
-        return res;
+        return max + Math.log(sum);
     }
 }
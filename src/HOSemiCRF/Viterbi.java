@@ -14,6 +14,10 @@ public class Viterbi implements Schedulable {
     FeatureGenerator featureGen; // Feature generator
     double[] lambda; // Lambda vector
     ArrayList data; // List of training sequences
+    ArrayList<Workspace> workspaces; // Per-thread workspaces
+    int numWorkspaces; // Number of workspaces assigned to the threads
+    ThreadLocal<Workspace> threadWorkspace; // Workspace of the current thread
+    long numPrunedStates; // Number of forward states pruned by the beam
     final int BASE = 1; // Base of the logAlpha array
 
     /**
@@ -21,12 +25,32 @@ public class Viterbi implements Schedulable {
      * @param featureGen Feature generator
      * @param lambda Lambda vector
      * @param data Training data
+     * @param workspaces List of workspaces, extended when there are more threads than workspaces
      */
-    public Viterbi(FeatureGenerator featureGen, double[] lambda, ArrayList data) {
+    public Viterbi(FeatureGenerator featureGen, double[] lambda, ArrayList data, ArrayList<Workspace> workspaces) {
         curID = -1;
         this.featureGen = featureGen;
         this.lambda = lambda;
         this.data = data;
+        this.workspaces = workspaces;
+        numWorkspaces = 0;
+        threadWorkspace = new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue() {
+                return nextWorkspace();
+            }
+        };
+    }
+    
+    /**
+     * Assign the next workspace to a thread.
+     * @return The workspace
+     */
+    synchronized Workspace nextWorkspace() {
+        if (numWorkspaces == workspaces.size()) {
+            workspaces.add(new Workspace(featureGen));
+        }
+        return workspaces.get(numWorkspaces++);
     }
     
     /**
@@ -36,61 +60,278 @@ public class Viterbi implements Schedulable {
      */
     public Object compute(int taskID) {
         DataSequence seq = (DataSequence) data.get(taskID);
-        double maxScore[][] = new double[seq.length() + 1][featureGen.forwardStateMap.size()];
-        String trace[][] = new String[seq.length()][featureGen.forwardStateMap.size()];
+        Workspace ws = threadWorkspace.get();
+        computeMaxScores(seq, ws);
+        traceBack(seq, ws).apply(seq);
+        return seq;
+    }
+    
+    /**
+     * Build the best segmentation from the max scores and the backpointers.
+     * @param seq Data sequence
+     * @param ws Workspace with the max scores (in logAlpha) and the backpointers
+     * @return The best segmentation with its score, or the current segmentation of the sequence
+     * with a score of negative infinity if no segmentation satisfies its constraints
+     */
+    public Labeling traceBack(DataSequence seq, Workspace ws) {
+        int numStates = featureGen.forwardStateMap.size();
+        double[] maxScore = ws.logAlpha;
+        
+        // Compute max score for last element
+        double max = Double.NEGATIVE_INFINITY;
+        int stateMax = -1;
+        int lastRow = (seq.length() + BASE - 1) * numStates;
+        for (int i = 0; i < numStates; i++) {
+            if (max < maxScore[lastRow + i]) {
+                max = maxScore[lastRow + i];
+                stateMax = i;
+            }
+        }
 
-        Arrays.fill(maxScore[0], Double.NEGATIVE_INFINITY);
-        maxScore[0][0] = 0.0;
+        // Trace back
+        Labeling res = new Labeling(seq.length(), max);
+        if (stateMax == -1) {
+            // No segmentation satisfies the constraints, keep the current labels
+            for (int pos = 0; pos < seq.length(); pos = seq.getSegmentEnd(pos) + 1) {
+                res.setSegment(pos, seq.getSegmentEnd(pos), seq.y(pos));
+            }
+            return res;
+        }
+        int currPos = seq.length() - 1;
+        int currState = stateMax;
+        while (currPos >= 0) {
+            int prevPos = ws.tracePos[currPos * numStates + currState];
+            int prevState = ws.traceState[currPos * numStates + currState];
+            res.setSegment(prevPos + 1, currPos, featureGen.lastForwardStateLabel[currState]);
+            currPos = prevPos;
+            currState = prevState;
+        }
+        return res;
+    }
+    
+    /**
+     * Compute the max scores and the backpointers of all the forward states at all the positions.
+     * The observation IDs of the sequence are computed once. Without beam, all the segments are scored
+     * in the potential table, which is left in the workspace. With beam, only the segments extending
+     * the kept states are scored.
+     * The observation IDs are not stored in the sequence, so the sequence can be decoded again
+     * with another feature generator and does not hold them after decoding.
+     * @param seq Data sequence
+     * @param ws Workspace to store the potentials, the max scores (in logAlpha) and the backpointers
+     */
+    public void computeMaxScores(DataSequence seq, Workspace ws) {
+        ws.ensureTrace(seq.length());
+        int[][][] observations = featureGen.getAllObsIDs(seq);
+        if (featureGen.params.useBeam()) {
+            computeBeamMaxScores(seq, observations, ws);
+        } else {
+            featureGen.computePotential(seq, observations, lambda, ws);
+            computeExactMaxScores(seq, ws);
+        }
+    }
+    
+    /**
+     * Compute the max scores and the backpointers from the potential table without pruning.
+     * @param seq Data sequence with its segment potentials computed in the workspace
+     * @param ws Workspace to store the max scores (in logAlpha) and the backpointers
+     */
+    public void computeExactMaxScores(DataSequence seq, Workspace ws) {
+        CompiledLattice lattice = featureGen.lattice;
+        ws.ensureTrace(seq.length());
+        int numStates = featureGen.forwardStateMap.size();
+        double[] maxScore = ws.logAlpha;
+
+        int[] runs = ws.resetRuns();
+        Arrays.fill(maxScore, 0, numStates, Double.NEGATIVE_INFINITY);
+        maxScore[0] = 0.0;
         for (int j = 0; j < seq.length(); j++) {
-            Arrays.fill(maxScore[j + BASE], Double.NEGATIVE_INFINITY);
-            for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
+            int row = (j + BASE) * numStates;
+            Arrays.fill(maxScore, row, row + numStates, Double.NEGATIVE_INFINITY);
+            seq.extendAllowedRuns(j, runs);
+            if (!seq.isBoundaryAllowed(j + 1)) {
+                continue;
+            }
+            for (int i = 0; i < numStates; i++) {
                 int y = featureGen.lastForwardStateLabel[i];
-                int maxmem = (y == -1) ? 0 : featureGen.maxMemory[y];
+                int maxmem = (y == -1) ? 0 : Math.min(featureGen.maxMemory[y], runs[y]);
 	               
-                ArrayList<Integer> prevState1 = featureGen.forwardTransition1[i];
-                ArrayList<Integer> prevState2 = featureGen.forwardTransition2[i];
+                int transStart = lattice.forwardOffsets[i];
+                int transEnd = lattice.forwardOffsets[i + 1];
                 for (int d = 0; d < maxmem && j - d >= 0; d++) {
-                    for (int k = 0; k < prevState1.size(); k++) {
-                        int pkID = prevState1.get(k);
-                        int pkyID = prevState2.get(k);
-                        String pky = featureGen.backwardStateList.get(pkyID);
-                        ArrayList<Feature> features = featureGen.generateFeatures(seq, j-d, j, pky);
-                        ArrayList<Integer> feats = featureGen.getFeatureID(features);
-                        double featuresScore = featureGen.computeFeatureScores(feats, lambda);
-                        if (maxScore[j + BASE][i] < featuresScore + maxScore[j + BASE - d - 1][pkID]) {
-                            maxScore[j + BASE][i] = featuresScore + maxScore[j + BASE - d - 1][pkID];
-                            trace[j][i] = (j - d - 1) + " " + pkID + " " + y;
+                    if (!seq.isBoundaryAllowed(j - d)) {
+                        continue;
+                    }
+                    int prevRow = (j + BASE - d - 1) * numStates;
+                    int potBase = ws.potentialIndex(j - d, d, 0);
+                    for (int k = transStart; k < transEnd; k++) {
+                        int pkID = lattice.forwardTransition1[k];
+                        int pkyID = lattice.forwardTransition2[k];
+                        double featuresScore = ws.potential[potBase + pkyID];
+                        if (maxScore[row + i] < featuresScore + maxScore[prevRow + pkID]) {
+                            maxScore[row + i] = featuresScore + maxScore[prevRow + pkID];
+                            ws.tracePos[j * numStates + i] = j - d - 1;
+                            ws.traceState[j * numStates + i] = pkID;
                         }
                     }
                 }
             }
         }
+    }
+    
+    /**
+     * Compute the max scores and the backpointers with beam search.
+     * Only the forward states kept by the beam at the end of the previous segments are extended,
+     * so the cost depends on the beam size instead of the number of forward states.
+     * The potentials are computed lazily: the pattern scores of a segment are computed once if the segment
+     * extends a kept state, and only the backward states of these extensions are scored in the workspace.
+     * The other entries of the potential table are not valid.
+     * @param seq Data sequence
+     * @param observations Observation IDs of the sequence, indexed by [segStart, d]
+     * @param ws Workspace to store the potentials, the max scores (in logAlpha) and the backpointers
+     */
+    public void computeBeamMaxScores(DataSequence seq, int[][][] observations, Workspace ws) {
+        CompiledLattice lattice = featureGen.lattice;
+        int numStates = featureGen.forwardStateMap.size();
+        int numRows = featureGen.params.maxSegment + 1;
+        double[] maxScore = ws.logAlpha;
+        ws.ensureBeam();
+        int[] kept = ws.beamStates;
+        long numPruned = 0;
+        int[] runs = ws.resetRuns();
         
-        // Compute max score for last element
-        double max = Double.NEGATIVE_INFINITY;
-        String tracemax = "";
-        for (int i = 0; i < featureGen.forwardStateMap.size(); i++) {
-            if (max < maxScore[seq.length() + BASE - 1][i]) {
-                max = maxScore[seq.length() + BASE - 1][i];
-                tracemax = trace[seq.length() - 1][i];
+        Arrays.fill(maxScore, 0, numStates, Double.NEGATIVE_INFINITY);
+        maxScore[0] = 0.0;
+        kept[0] = 0;
+        ws.beamSizes[0] = 1;
+        for (int j = 0; j < seq.length(); j++) {
+            int row = (j + BASE) * numStates;
+            int slot = (j + BASE) % numRows;
+            Arrays.fill(maxScore, row, row + numStates, Double.NEGATIVE_INFINITY);
+            seq.extendAllowedRuns(j, runs);
+            ws.beamSizes[slot] = 0;
+            if (!seq.isBoundaryAllowed(j + 1)) {
+                continue;
+            }
+            for (int d = 0; d < featureGen.params.maxSegment && j - d >= 0; d++) {
+                if (!seq.isBoundaryAllowed(j - d)) {
+                    continue;
+                }
+                int prevRow = (j + BASE - d - 1) * numStates;
+                int prevSlot = (j - d) % numRows;
+                int potBase = ws.potentialIndex(j - d, d, 0);
+                boolean scored = false;
+                for (int b = prevSlot * numStates; b < prevSlot * numStates + ws.beamSizes[prevSlot]; b++) {
+                    int pkID = kept[b];
+                    for (int t = lattice.nextOffsets[pkID]; t < lattice.nextOffsets[pkID + 1]; t++) {
+                        int i = lattice.nextStates[t];
+                        int y = featureGen.lastForwardStateLabel[i];
+                        if (d >= featureGen.maxMemory[y] || d >= runs[y]) {
+                            continue;
+                        }
+                        if (!scored) {
+                            featureGen.computePatternScores(observations[j - d][d], lambda, ws.patScores);
+                            scored = true;
+                        }
+                        int pkyID = lattice.nextBackwardStates[t];
+                        ws.potential[potBase + pkyID] = featureGen.computeStatePotential(pkyID, ws.patScores);
+                        double score = maxScore[prevRow + pkID] + ws.potential[potBase + pkyID];
+                        if (maxScore[row + i] < score) {
+                            maxScore[row + i] = score;
+                            ws.tracePos[j * numStates + i] = j - d - 1;
+                            ws.traceState[j * numStates + i] = pkID;
+                        }
+                    }
+                }
             }
+            int n = collectStates(maxScore, row, numStates, kept, slot * numStates);
+            int numKept = pruneStates(maxScore, row, kept, slot * numStates, n, ws.beamScores);
+            ws.beamSizes[slot] = numKept;
+            numPruned += n - numKept;
         }
-
-        // Trace back
-        int currPos = seq.length() - 1;
-        while (currPos >= 0) {
-            StringTokenizer toks = new StringTokenizer(tracemax);
-            int prevPos = Integer.parseInt(toks.nextToken());
-            int prevPat = Integer.parseInt(toks.nextToken());
-            int currY = Integer.parseInt(toks.nextToken());
-            seq.setSegment(prevPos + 1, currPos, currY);
-            currPos = prevPos;
-            if (currPos >= 0) {
-                tracemax = trace[prevPos][prevPat];
+        addPrunedStates(numPruned);
+    }
+    
+    /**
+     * Collect the reachable forward states in a row of the max scores.
+     * @param maxScore Max scores
+     * @param row Start of the row
+     * @param numStates Number of forward states
+     * @param states Output array of the reachable states
+     * @param start Start of the output in the array
+     * @return Number of reachable states
+     */
+    int collectStates(double[] maxScore, int row, int numStates, int[] states, int start) {
+        int n = 0;
+        for (int i = 0; i < numStates; i++) {
+            if (maxScore[row + i] != Double.NEGATIVE_INFINITY) {
+                states[start + n++] = i;
             }
         }
-
-        return seq;
+        return n;
+    }
+    
+    /**
+     * Keep the best states among the reachable forward states in a row and set the scores of the others to negative infinity.
+     * A state is kept if it is among the beamWidth best states and its score is within beamGap of the best score.
+     * @param maxScore Max scores
+     * @param row Start of the row
+     * @param states Array with the reachable states, replaced by the kept states
+     * @param start Start of the states in the array
+     * @param n Number of reachable states
+     * @param scores Scratch buffer for the scores of the reachable states
+     * @return Number of kept states
+     */
+    int pruneStates(double[] maxScore, int row, int[] states, int start, int n, double[] scores) {
+        for (int t = 0; t < n; t++) {
+            scores[t] = maxScore[row + states[start + t]];
+        }
+        Arrays.sort(scores, 0, n);
+        
+        int limit = n;
+        double threshold = Double.NEGATIVE_INFINITY;
+        if (featureGen.params.beamWidth > 0 && n > featureGen.params.beamWidth) {
+            limit = featureGen.params.beamWidth;
+            threshold = scores[n - limit];
+        }
+        if (featureGen.params.beamGap > 0 && n > 0) {
+            threshold = Math.max(threshold, scores[n - 1] - featureGen.params.beamGap);
+        }
+        
+        int numAbove = 0;
+        for (int t = 0; t < n; t++) {
+            if (scores[t] > threshold) {
+                numAbove++;
+            }
+        }
+        int numTies = limit - numAbove;
+        int numKept = 0;
+        for (int t = 0; t < n; t++) {
+            int state = states[start + t];
+            double score = maxScore[row + state];
+            if (score > threshold || (score == threshold && numTies-- > 0)) {
+                states[start + numKept++] = state;
+            } else {
+                maxScore[row + state] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        return numKept;
+    }
+    
+    /**
+     * Add the number of pruned states of a sequence to the total.
+     * @param n Number of pruned states
+     */
+    synchronized void addPrunedStates(long n) {
+        numPrunedStates += n;
+    }
+    
+    /**
+     * Return the number of forward states pruned by the beam so far.
+     * A state is counted once for each position where it is reachable but pruned.
+     * @return Number of pruned states
+     */
+    public synchronized long getNumPrunedStates() {
+        return numPrunedStates;
     }
     
     /**
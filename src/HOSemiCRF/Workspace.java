@@ -0,0 +1,131 @@
+package HOSemiCRF;
+
+import java.util.*;
+
+/**
+ * Reusable arrays for the dynamic programming algorithms of one thread
+ * All the arrays are flat and row-major. They grow to the longest sequence seen
+ * and are reused for the next sequences and iterations.
+ * @author Nguyen Viet Cuong
+ */
+public class Workspace {
+
+    int numForwardStates; // Row size of the forward arrays
+    int numBackwardStates; // Row size of the backward arrays
+    int maxSegment; // Maximum segment length
+    int numPatterns; // Number of patterns
+    int length; // Maximum sequence length supported by the current arrays
+    
+    double[] logAlpha; // [pos, piID] -> Logarithm of alpha (or max score in Viterbi)
+    double[] logBeta; // [pos, sID] -> Logarithm of beta
+    double[] potential; // [segStart, d, sID] -> Segment potential
+    double[] patScores; // [d, patID] -> Total feature score of a pattern
+    double[] terms; // Scratch buffer for the terms of a log-sum-exp reduction
+    int[] runs; // [y] -> Number of consecutive positions allowing label y, updated along a pass (see DataSequence.extendAllowedRuns)
+    int[] tracePos; // [pos, piID] -> Viterbi backpointer to the end of the previous segment
+    int[] traceState; // [pos, piID] -> Viterbi backpointer to the previous forward state
+    double[] expPotential; // [segStart, d, sID] -> Exponential of the segment potential (scaled forward-backward only)
+    double[] logScaleAlpha; // [pos] -> Logarithm of the product of the alpha scaling factors up to pos
+    double[] logScaleBeta; // [pos] -> Logarithm of the product of the beta scaling factors from pos
+    double[] scaleRatios; // [d] -> Ratio of the scaling factors across a segment
+    int[] beamStates; // [row % (maxSegment + 1), i] -> Forward states kept by the beam at the last rows (beam search only)
+    int[] beamSizes; // [row % (maxSegment + 1)] -> Number of forward states kept by the beam at the last rows
+    double[] beamScores; // Scratch buffer for the scores of the states of a row
+
+    /**
+     * Construct an empty workspace for a feature generator.
+     * @param featureGen Feature generator
+     */
+    public Workspace(FeatureGenerator featureGen) {
+        numForwardStates = featureGen.forwardStateMap.size();
+        numBackwardStates = featureGen.backwardStateMap.size();
+        maxSegment = featureGen.params.maxSegment;
+        numPatterns = featureGen.patternMap.size();
+        length = -1;
+        patScores = new double[maxSegment * numPatterns];
+        runs = new int[featureGen.params.numLabels];
+        
+        int maxTerms = Math.max(numForwardStates, featureGen.params.numLabels * maxSegment);
+        for (int i = 0; i < numForwardStates; i++) {
+            maxTerms = Math.max(maxTerms, featureGen.lattice.numForwardTransitions(i) * maxSegment);
+        }
+        for (int i = 0; i < numPatterns; i++) {
+            maxTerms = Math.max(maxTerms, featureGen.lattice.numPatternTransitions(i));
+        }
+        terms = new double[maxTerms];
+    }
+    
+    /**
+     * Make sure that the arrays can hold a sequence of a given length.
+     * @param len Sequence length
+     */
+    public void ensureLength(int len) {
+        if (len > length) {
+            length = Math.max(len, 2 * length);
+            logAlpha = new double[(length + 1) * numForwardStates];
+            logBeta = new double[(length + 1) * numBackwardStates];
+            potential = new double[length * maxSegment * numBackwardStates];
+            tracePos = null;
+            traceState = null;
+            expPotential = null;
+        }
+    }
+    
+    /**
+     * Make sure that the arrays of the scaled forward-backward algorithm can hold a sequence of a given length.
+     * @param len Sequence length
+     */
+    public void ensureScaling(int len) {
+        ensureLength(len);
+        if (expPotential == null) {
+            expPotential = new double[potential.length];
+            logScaleAlpha = new double[length + 1];
+            logScaleBeta = new double[length + 1];
+            scaleRatios = new double[maxSegment];
+        }
+    }
+    
+    /**
+     * Make sure that the Viterbi backpointers can hold a sequence of a given length.
+     * @param len Sequence length
+     */
+    public void ensureTrace(int len) {
+        ensureLength(len);
+        if (tracePos == null) {
+            tracePos = new int[length * numForwardStates];
+            traceState = new int[length * numForwardStates];
+        }
+    }
+    
+    /**
+     * Make sure that the buffers of the beam search are allocated.
+     * They only hold the last maxSegment + 1 rows, so they do not depend on the sequence length.
+     */
+    public void ensureBeam() {
+        if (beamStates == null) {
+            beamStates = new int[(maxSegment + 1) * numForwardStates];
+            beamSizes = new int[maxSegment + 1];
+            beamScores = new double[numForwardStates];
+        }
+    }
+    
+    /**
+     * Reset the run lengths of the labels for a new pass over a sequence.
+     * @return The run lengths, all zero
+     */
+    public int[] resetRuns() {
+        Arrays.fill(runs, 0);
+        return runs;
+    }
+    
+    /**
+     * Return the index of a segment and a backward state in the potential array.
+     * @param segStart Start position of the segment
+     * @param d Segment length minus one
+     * @param sID Backward state ID
+     * @return Index in the potential array
+     */
+    public int potentialIndex(int segStart, int d, int sID) {
+        return (segStart * maxSegment + d) * numBackwardStates + sID;
+    }
+}
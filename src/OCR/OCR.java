@@ -123,6 +123,9 @@ public class OCR {
         long startTime = System.currentTimeMillis();
         highOrderCrfModel.runViterbi(testData.getSeqList());
         System.out.println("done in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (highOrderCrfModel.getNumPrunedStates() > 0) {
+            System.out.println("Pruned " + highOrderCrfModel.getNumPrunedStates() + " states");
+        }
 
         // Print out the predicted data and score
         File dir = new File("out/");
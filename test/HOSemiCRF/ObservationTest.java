@@ -0,0 +1,46 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Applications.RefFeatures.*;
+
+/**
+ * Check that the observations composed from per-token observations are those generated for each segment
+ * @author Nguyen Viet Cuong
+ */
+public class ObservationTest {
+
+    public static void main(String argv[]) throws Exception {
+        LabelMap labelmap = new LabelMap();
+        ArrayList<DataSequence> trainData = TestUtils.readTagged("run/ref/ref.train", labelmap);
+        ArrayList<DataSequence> testData = new ArrayList<DataSequence>(TestUtils.readTagged("run/ref/ref.test", labelmap).subList(0, 3));
+        checkObservations(trainData, testData, TestUtils.createFeatureGenerator(labelmap, new FirstOrderTransition()));
+        checkObservations(trainData, testData, TestUtils.createFeatureGenerator(labelmap, new FirstOrderTransition(), "hashBits=16"));
+        System.out.println("ObservationTest passed");
+    }
+
+    /**
+     * Compare getAllObsIDs with getObsIDs on all the segments of the test data.
+     * @param trainData Training data
+     * @param testData Test data
+     * @param featureGen Feature generator, not initialized
+     */
+    static void checkObservations(ArrayList<DataSequence> trainData, ArrayList<DataSequence> testData, FeatureGenerator featureGen) throws Exception {
+        featureGen.initialize(trainData);
+        int numSegments = 0;
+        for (int t = 0; t < testData.size(); t++) {
+            DataSequence seq = testData.get(t);
+            int[][][] observations = featureGen.getAllObsIDs(seq);
+            TestUtils.check(observations.length == seq.length(), "Sequence " + t + ": " + observations.length + " rows");
+            for (int segStart = 0; segStart < seq.length(); segStart++) {
+                int maxLength = Math.min(featureGen.params.maxSegment, seq.length() - segStart);
+                TestUtils.check(observations[segStart].length == maxLength, "Sequence " + t + ": wrong number of segments at " + segStart);
+                for (int d = 0; d < maxLength; d++) {
+                    int[] expected = featureGen.getObsIDs(seq, segStart, segStart + d);
+                    TestUtils.check(Arrays.equals(observations[segStart][d], expected), "Sequence " + t + ": wrong observations at segment " + segStart + "-" + (segStart + d));
+                    numSegments++;
+                }
+            }
+        }
+        TestUtils.check(numSegments > 0, "No segment checked");
+    }
+}
@@ -0,0 +1,71 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Applications.RefFeatures.*;
+
+/**
+ * Check minimum Bayes risk decoding against the enumeration of the segmentations of short sequences
+ * @author Nguyen Viet Cuong
+ */
+public class PosteriorDecoderTest {
+
+    static final int LENGTH = 5; // Length of the test sequences
+
+    public static void main(String argv[]) throws Exception {
+        LabelMap labelmap = new LabelMap();
+        ArrayList<DataSequence> trainData = TestUtils.readTagged("run/ref/ref.train", labelmap);
+        FeatureGenerator featureGen = TestUtils.createFeatureGenerator(labelmap, new FirstOrderTransition());
+        featureGen.initialize(trainData);
+        HighOrderSemiCRF model = new HighOrderSemiCRF(featureGen);
+        TestUtils.setRandomLambda(model, 1);
+
+        // Cut the test sequences into short sequences
+        ArrayList<DataSequence> testData = new ArrayList<DataSequence>();
+        for (DataSequence seq : TestUtils.readTagged("run/ref/ref.test", labelmap)) {
+            for (int start = 0; start + LENGTH <= seq.length(); start += LENGTH) {
+                Object[] inps = new Object[LENGTH];
+                for (int i = 0; i < LENGTH; i++) {
+                    inps[i] = seq.x(start + i);
+                }
+                testData.add(new DataSequence(new int[LENGTH], inps, labelmap));
+            }
+        }
+
+        ArrayList<Posterior> posteriors = model.runPosteriorDecoding(testData, true);
+        for (int t = 0; t < testData.size(); t++) {
+            Posterior post = posteriors.get(t);
+            Labeling labeling = post.getLabeling();
+            double gain = 0.0;
+            for (int pos = 0; pos < LENGTH; pos++) {
+                gain += post.getLabelMarginal(pos, labeling.y(pos));
+            }
+            double bestGain = getBestGain(featureGen, post, 0);
+            TestUtils.check(Math.abs(gain - labeling.getScore()) < 1e-9, "Sequence " + t + ": score " + labeling.getScore() + " instead of " + gain);
+            TestUtils.check(Math.abs(gain - bestGain) < 1e-9, "Sequence " + t + ": gain " + gain + " instead of " + bestGain);
+        }
+        System.out.println("PosteriorDecoderTest passed");
+    }
+
+    /**
+     * Enumerate the segmentations of the positions from a given one.
+     * Adjacent segments may have the same label.
+     * @param featureGen Feature generator
+     * @param post Posteriors of the sequence
+     * @param pos Start of the next segment
+     * @return Best sum of the label marginals of the positions from pos
+     */
+    static double getBestGain(FeatureGenerator featureGen, Posterior post, int pos) {
+        if (pos == LENGTH) {
+            return 0.0;
+        }
+        double best = Double.NEGATIVE_INFINITY;
+        for (int y = 0; y < featureGen.params.numLabels; y++) {
+            double segGain = 0.0;
+            for (int d = 0; d < featureGen.maxMemory[y] && pos + d < LENGTH; d++) {
+                segGain += post.getLabelMarginal(pos + d, y);
+                best = Math.max(best, segGain + getBestGain(featureGen, post, pos + d + 1));
+            }
+        }
+        return best;
+    }
+}
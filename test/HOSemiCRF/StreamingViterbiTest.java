@@ -0,0 +1,45 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Applications.RefFeatures.*;
+
+/**
+ * Check that the streaming Viterbi without a lag returns the same labels as the batch Viterbi
+ * @author Nguyen Viet Cuong
+ */
+public class StreamingViterbiTest {
+
+    public static void main(String argv[]) throws Exception {
+        LabelMap labelmap = new LabelMap();
+        ArrayList<DataSequence> trainData = TestUtils.readTagged("run/ref/ref.train", labelmap);
+        FeatureGenerator featureGen = TestUtils.createFeatureGenerator(labelmap, new FirstOrderTransition(), "streamLag=0");
+        featureGen.initialize(trainData);
+        HighOrderSemiCRF model = new HighOrderSemiCRF(featureGen);
+
+        for (long seed = 1; seed <= 3; seed++) {
+            TestUtils.setRandomLambda(model, seed);
+            ArrayList<DataSequence> testData = TestUtils.readTagged("run/ref/ref.test", labelmap);
+            model.runViterbi(testData);
+
+            // Stream all the sequences through the same decoder
+            StreamingViterbi streamer = model.createStreamingViterbi();
+            for (int t = 0; t < testData.size(); t++) {
+                DataSequence seq = testData.get(t);
+                ArrayList<Integer> labels = new ArrayList<Integer>();
+                for (int i = 0; i < seq.length(); i++) {
+                    for (int y : streamer.add(seq.x(i))) {
+                        labels.add(y);
+                    }
+                }
+                for (int y : streamer.finish()) {
+                    labels.add(y);
+                }
+                TestUtils.check(labels.size() == seq.length(), "Sequence " + t + ": " + labels.size() + " labels for " + seq.length() + " tokens");
+                for (int i = 0; i < seq.length(); i++) {
+                    TestUtils.check(labels.get(i) == seq.y(i), "Sequence " + t + ": label " + labels.get(i) + " instead of " + seq.y(i) + " at position " + i);
+                }
+            }
+        }
+        System.out.println("StreamingViterbiTest passed");
+    }
+}
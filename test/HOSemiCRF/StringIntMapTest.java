@@ -0,0 +1,79 @@
+package HOSemiCRF;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Check that the keys of the string pool are encoded as in String.getBytes and decoded back
+ * @author Nguyen Viet Cuong
+ */
+public class StringIntMapTest {
+
+    public static void main(String argv[]) throws Exception {
+        ArrayList<String> keys = new ArrayList<String>();
+        keys.add("");
+        keys.add("2WPB.the.of.-3.2");
+        keys.add("LNGB.#<ab#");
+        keys.add("caf\u00e9 na\u00efve");
+        keys.add("\u4e2d\u6587\u5206\u8bcd");
+        keys.add("emoji \ud83d\ude00 and \ud834\udd1e");
+        keys.add("\uffff\u0800\u07ff\u0080\u007f");
+        keys.add("unpaired \ud800 and \udc00 surrogates\ud83d");
+
+        // Random strings over all the UTF-8 lengths, with some unpaired surrogates
+        Random rand = new Random(0);
+        for (int k = 0; k < 20000; k++) {
+            StringBuilder sb = new StringBuilder();
+            int length = rand.nextInt(12);
+            for (int i = 0; i < length; i++) {
+                int kind = rand.nextInt(5);
+                if (kind == 0) {
+                    sb.append((char) rand.nextInt(0x80));
+                } else if (kind == 1) {
+                    sb.append((char) (0x80 + rand.nextInt(0x800 - 0x80)));
+                } else if (kind == 2) {
+                    sb.append((char) (0x800 + rand.nextInt(0xD800 - 0x800)));
+                } else if (kind == 3) {
+                    sb.appendCodePoint(0x10000 + rand.nextInt(0x110000 - 0x10000));
+                } else {
+                    sb.append((char) (0xD800 + rand.nextInt(0x800)));
+                }
+            }
+            keys.add(sb.toString());
+        }
+
+        // The map is keyed by the UTF-8 bytes, so keys with the same bytes share an entry
+        StringIntMap map = new StringIntMap();
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (int k = 0; k < keys.size(); k++) {
+            String key = keys.get(k);
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            int length = StringIntMap.encode(key);
+            TestUtils.check(Arrays.equals(bytes, Arrays.copyOf(StringIntMap.buffer.get(), length)), "Wrong encoding of key " + k);
+            map.put(new StringBuilder(key), k);
+            expected.put(new String(bytes, StandardCharsets.UTF_8), k);
+        }
+        TestUtils.check(map.size() == expected.size(), "Size " + map.size() + " instead of " + expected.size());
+
+        int keyBytes = 0;
+        StringIntMap copy = new StringIntMap(1);
+        for (int pos = 0; pos < map.size(); pos++) {
+            String key = map.getKey(pos);
+            Integer value = expected.get(key);
+            TestUtils.check(value != null && value == map.getValue(pos), "Wrong key or value at position " + pos);
+            TestUtils.check(map.get(key) == value, "Wrong lookup of key at position " + pos);
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            TestUtils.check(map.get(bytes, 0, bytes.length) == value, "Wrong byte lookup of key at position " + pos);
+            keyBytes += bytes.length;
+            copy.put(map, pos, value);
+        }
+        TestUtils.check(map.keyBytes() == keyBytes, "Key bytes " + map.keyBytes() + " instead of " + keyBytes);
+        for (int k = 0; k < keys.size(); k++) {
+            String key = keys.get(k);
+            int value = expected.get(new String(key.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8));
+            TestUtils.check(map.get(key) == value && copy.get(key) == value, "Wrong lookup of key " + k);
+        }
+        TestUtils.check(map.get("not a key") == -1 && !map.containsKey("\ud83d\ude01\ud83d\ude01\ud83d\ude01"), "Lookup of a missing key");
+        System.out.println("StringIntMapTest passed");
+    }
+}
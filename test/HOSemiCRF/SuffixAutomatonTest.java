@@ -0,0 +1,64 @@
+package HOSemiCRF;
+
+import java.util.*;
+import Applications.RefFeatures.*;
+
+/**
+ * Check the longest suffix lookups of the suffix automaton against probing the maps with every suffix
+ * @author Nguyen Viet Cuong
+ */
+public class SuffixAutomatonTest {
+
+    public static void main(String argv[]) throws Exception {
+        LabelMap labelmap = new LabelMap();
+        ArrayList<DataSequence> trainData = TestUtils.readTagged("run/ref/ref.train", labelmap);
+        checkAutomaton(trainData, TestUtils.createFeatureGenerator(labelmap, new FirstOrderTransition()));
+        checkAutomaton(trainData, TestUtils.createFeatureGenerator(labelmap, new ThirdOrderTransition(), "maxSegment=1"));
+        System.out.println("SuffixAutomatonTest passed");
+    }
+
+    /**
+     * Compare the automaton of a feature generator with brute-force suffix probing on all its nodes and labels.
+     * @param trainData Training data
+     * @param featureGen Feature generator, not initialized
+     */
+    static void checkAutomaton(ArrayList<DataSequence> trainData, FeatureGenerator featureGen) throws Exception {
+        featureGen.initialize(trainData);
+        SuffixAutomaton automaton = new SuffixAutomaton(featureGen);
+        LabelPattern labelPattern = featureGen.labelPattern;
+        for (int node = 0; node < automaton.nodeKeys.length; node++) {
+            long p = automaton.nodeKeys[node];
+            TestUtils.check(automaton.getNode(p) == node, "Wrong node of " + labelPattern.toString(p));
+
+            // Pattern suffixes of the node, longest first
+            ArrayList<Integer> patterns = new ArrayList<Integer>();
+            for (int len = labelPattern.length(p); len > 0; len--) {
+                int patID = featureGen.patternMap.get(labelPattern.suffix(p, len));
+                if (patID != -1) {
+                    patterns.add(patID);
+                }
+            }
+            TestUtils.check(patterns.equals(automaton.getPatternSuffixes(node)), "Wrong pattern suffixes of " + labelPattern.toString(p));
+
+            // Longest forward and backward states that are suffixes of y|p
+            int maxLength = Math.min(labelPattern.length(p), labelPattern.maxLength - 1);
+            for (int y = 0; y < featureGen.params.numLabels; y++) {
+                int forward = -1, backward = -1;
+                for (int len = maxLength; len >= 0 && (forward == -1 || backward == -1); len--) {
+                    long q = labelPattern.extend(labelPattern.suffix(p, len), y);
+                    if (forward == -1) {
+                        forward = featureGen.forwardStateMap.get(q);
+                    }
+                    if (backward == -1) {
+                        backward = featureGen.backwardStateMap.get(q);
+                    }
+                }
+                if (forward == -1) {
+                    forward = featureGen.forwardStateMap.get(0L);
+                }
+                TestUtils.check(automaton.getLongestForwardSuffix(node, y) == forward, "Wrong forward suffix of " + y + "|" + labelPattern.toString(p));
+                TestUtils.check(automaton.getLongestBackwardSuffix(node, y) == backward, "Wrong backward suffix of " + y + "|" + labelPattern.toString(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package HOSemiCRF;
+
+import java.io.*;
+import java.util.*;
+import Applications.RefFeatures.*;
+
+/**
+ * Shared helpers of the tests
+ * The tests run from the project directory and use the data of the reference tagger.
+ * @author Nguyen Viet Cuong
+ */
+class TestUtils {
+
+    /**
+     * Read a tagged file of the reference tagger.
+     * @param filename Name of the file
+     * @param labelmap Label map, new labels are added to it
+     * @return List of data sequences
+     */
+    static ArrayList<DataSequence> readTagged(String filename, LabelMap labelmap) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        ArrayList<DataSequence> td = new ArrayList<DataSequence>();
+        ArrayList<String> inps = new ArrayList<String>();
+        ArrayList<String> labels = new ArrayList<String>();
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            if (line.length() > 0) {
+                StringTokenizer toks = new StringTokenizer(line);
+                inps.add(toks.nextToken());
+                labels.add(toks.nextToken());
+            } else if (labels.size() > 0) {
+                td.add(new DataSequence(labelmap.mapArrayList(labels), inps.toArray(), labelmap));
+                inps = new ArrayList<String>();
+                labels = new ArrayList<String>();
+            }
+        }
+        if (labels.size() > 0) {
+            td.add(new DataSequence(labelmap.mapArrayList(labels), inps.toArray(), labelmap));
+        }
+
+        in.close();
+        return td;
+    }
+
+    /**
+     * Create a feature generator with the feature types of the reference tagger.
+     * @param labelmap Label map
+     * @param transition Transition feature type, which sets the order of the model
+     * @param options Configuration lines
+     * @return The feature generator, not initialized
+     */
+    static FeatureGenerator createFeatureGenerator(LabelMap labelmap, FeatureType transition, String... options) throws Exception {
+        File conf = File.createTempFile("test", ".conf");
+        conf.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(conf));
+        for (String option : options) {
+            out.println(option);
+        }
+        out.close();
+
+        ArrayList<FeatureType> fts = new ArrayList<FeatureType>();
+        fts.add(new WordBag());
+        fts.add(new PreviousWordBag());
+        fts.add(new NextWordBag());
+        fts.add(new WordKPositionBeforeBag());
+        fts.add(new WordKPositionAfterBag());
+        fts.add(new LetterNGramsBag());
+        fts.add(new EdgeBag());
+        fts.add(new Edge());
+        fts.add(new EdgeWordBag());
+        fts.add(new EdgeWord());
+        fts.add(new EdgePreviousWordBag());
+        fts.add(new EdgePreviousWord());
+        fts.add(transition);
+        return new FeatureGenerator(fts, new Params(conf.getPath(), labelmap.size()));
+    }
+
+    /**
+     * Set the feature weights of a model to random values.
+     * @param model The model
+     * @param seed Seed of the random generator
+     */
+    static void setRandomLambda(HighOrderSemiCRF model, long seed) {
+        Random rand = new Random(seed);
+        for (int i = 0; i < model.lambda.length; i++) {
+            model.lambda[i] = rand.nextGaussian();
+        }
+    }
+
+    /**
+     * Fail the test if a condition does not hold.
+     * @param cond The condition
+     * @param message Message of the failure
+     */
+    static void check(boolean cond, String message) throws Exception {
+        if (!cond) {
+            throw new Exception(message);
+        }
+    }
+}